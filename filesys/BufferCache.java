@@ -0,0 +1,608 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A block cache in front of another file system, selected by setting
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.filesys.BufferCache</tt>.
+ * The file system underneath is named by <tt>BufferCache.fileSystem</tt>, and
+ * is the stub file system if the key is missing.
+ *
+ * <p>
+ * Files are cached in blocks of <tt>blockSize</tt> bytes, in a fixed budget
+ * of <tt>BufferCache.numBlocks</tt> frames replaced by the clock algorithm.
+ * A read or write that finds its blocks in the cache costs no I/O. The
+ * blocks of a file stay cached after it is closed, so a file opened again,
+ * such as an executable run twice, is read from the cache.
+ *
+ * <p>
+ * Writes only dirty the cache. A kernel thread wakes every
+ * <tt>BufferCache.flushInterval</tt> ticks and writes back the blocks that
+ * have been dirty for at least that long, so repeated writes to a block cost
+ * one write-back. Dirty blocks are also written back when they are evicted,
+ * when their file is closed, and by <tt>sync()</tt>. Runs of consecutive
+ * dirty blocks are written with a single request.
+ *
+ * <p>
+ * A read that misses right after the block before it was read is taken to
+ * be sequential, and reads blocks ahead of it in the same request, doubling
+ * the number each time up to <tt>BufferCache.maxReadAhead</tt>. A read that
+ * is not sequential resets the window.
+ */
+public class BufferCache implements FileSystem {
+	/**
+	 * Allocate a new buffer cache, and the file system it caches.
+	 */
+	public BufferCache() {
+		String fileSystemName = Config.getString("BufferCache.fileSystem");
+		if (fileSystemName != null)
+			fileSystem = (FileSystem) Lib.constructObject(fileSystemName);
+		else
+			fileSystem = Machine.stubFileSystem();
+		Lib.assertTrue(fileSystem != null, "no file system to cache");
+
+		numBlocks = Config.getInteger("BufferCache.numBlocks", 64);
+		maxReadAhead = Config.getInteger("BufferCache.maxReadAhead", 8);
+		flushInterval = Config.getInteger("BufferCache.flushInterval", 20000);
+		Lib.assertTrue(numBlocks > maxReadAhead + 1 && maxReadAhead >= 0
+				&& flushInterval >= 0);
+
+		frames = new Block[numBlocks];
+		for (int i = 0; i < numBlocks; i++)
+			frames[i] = new Block();
+
+		lock = new Lock();
+		blockReady = new Condition(lock);
+	}
+
+	/**
+	 * Return the file system this cache is in front of.
+	 *
+	 * @return the cached file system.
+	 */
+	public FileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+		startFlusher();
+		CachedFile f = files.get(name);
+		if (f != null && truncate) {
+			// drop the old contents before the file below is truncated
+			discard(f);
+			f.length = 0;
+		}
+		else if (f != null && f.openCount > 0) {
+			f.openCount++;
+			lock.release();
+			return new CachedOpenFile(f);
+		}
+		lock.release();
+
+		OpenFile file = fileSystem.open(name, truncate);
+		if (file == null)
+			return null;
+
+		lock.acquire();
+		f = files.get(name);
+		if (f == null) {
+			f = new CachedFile(name);
+			files.put(name, f);
+		}
+		if (f.openCount == 0) {
+			f.file = file;
+			f.length = file.length();
+		}
+		else {
+			if (truncate)
+				f.length = 0;
+			file.close();
+		}
+		f.openCount++;
+		lock.release();
+		return new CachedOpenFile(f);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+		CachedFile f = files.remove(name);
+		if (f != null) {
+			f.removed = true;
+			if (f.openCount == 0)
+				discard(f);
+		}
+		lock.release();
+
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Write back every dirty block, waiting until they are written.
+	 *
+	 * @return <tt>false</tt> if a block could not be written.
+	 */
+	public boolean sync() {
+		lock.acquire();
+		boolean ok = true;
+		for (Block block : frames) {
+			while (block.busy)
+				blockReady.sleep();
+			if (block.dirty)
+				ok &= writeBack(block);
+		}
+		lock.release();
+		return ok;
+	}
+
+	/**
+	 * Write back the dirty blocks of a file, and wait for its other blocks
+	 * to finish any I/O. Called holding <tt>lock</tt>.
+	 */
+	private boolean sync(CachedFile f) {
+		while (true) {
+			Block target = null;
+			for (Block block : f.blocks.values()) {
+				if (block.dirty || block.busy) {
+					target = block;
+					break;
+				}
+			}
+			if (target == null)
+				return true;
+			if (target.busy)
+				blockReady.sleep();
+			else if (!writeBack(target))
+				return false;
+		}
+	}
+
+	/**
+	 * Drop every block of a file without writing it back. Called holding
+	 * <tt>lock</tt>.
+	 */
+	private void discard(CachedFile f) {
+		while (!f.blocks.isEmpty()) {
+			Block block = f.blocks.values().iterator().next();
+			if (block.busy) {
+				blockReady.sleep();
+			}
+			else {
+				block.dirty = false;
+				drop(block);
+			}
+		}
+	}
+
+	/**
+	 * Return the cached block of a file, reading it if it is not cached.
+	 * Called holding <tt>lock</tt>, which is released while waiting for I/O.
+	 *
+	 * @param reader the open file reading the block, or <tt>null</tt> if the
+	 * caller is about to overwrite all of the block that is in the file, so a
+	 * missing block need not be read.
+	 * @param lastBlock the last block the reader wants.
+	 * @return the block, or <tt>null</tt> if it could not be read.
+	 */
+	private Block getBlock(CachedFile f, int blockNumber, CachedOpenFile reader,
+			int lastBlock) {
+		boolean needData = (reader != null);
+		while (true) {
+			Block block = f.blocks.get(blockNumber);
+			if (block != null && block.busy) {
+				blockReady.sleep();
+				continue;
+			}
+			if (block != null) {
+				if (needData)
+					numHits++;
+				return block;
+			}
+			if (!needData) {
+				block = allocate();
+				if (f.blocks.containsKey(blockNumber)) {
+					// cached by another thread while a victim was written
+					continue;
+				}
+				insert(block, f, blockNumber);
+				return block;
+			}
+			if (read(f, blockNumber, reader, lastBlock))
+				return f.blocks.get(blockNumber);
+			if (!f.blocks.containsKey(blockNumber))
+				return null;
+		}
+	}
+
+	/**
+	 * Read a block that is not cached, along with the rest of the blocks the
+	 * reader wants, and the blocks after them if the reads through the open
+	 * file are sequential. Called holding <tt>lock</tt>.
+	 *
+	 * @return <tt>true</tt> if the block was read, or <tt>false</tt> if the
+	 * read failed or another thread cached the block first.
+	 */
+	private boolean read(CachedFile f, int blockNumber, CachedOpenFile reader,
+			int lastBlock) {
+		if (blockNumber == reader.nextBlock)
+			reader.window = Math.min(Math.max(1, 2 * reader.window), maxReadAhead);
+		else
+			reader.window = 0;
+		int fileBlocks = Lib.divRoundUp(f.length, blockSize);
+		int wanted = Math.max(lastBlock - blockNumber, reader.window) + 1;
+		wanted = Math.max(1, Math.min(Math.min(wanted, numBlocks / 2),
+				fileBlocks - blockNumber));
+
+		ArrayList<Block> run = new ArrayList<Block>();
+		while (run.size() < wanted) {
+			Block block = allocate();
+			if (f.blocks.containsKey(blockNumber + run.size()))
+				break;
+			insert(block, f, blockNumber + run.size());
+			// blocks read ahead go first if they are never used
+			block.used = run.isEmpty();
+			block.busy = true;
+			run.add(block);
+		}
+		if (run.isEmpty())
+			return false;
+
+		numMisses++;
+		numReadAhead += run.size() - 1;
+		byte[] data = new byte[run.size() * blockSize];
+		lock.release();
+		int amount = f.file.read(blockNumber * blockSize, data, 0, data.length);
+		lock.acquire();
+
+		for (int i = 0; i < run.size(); i++) {
+			Block block = run.get(i);
+			block.busy = false;
+			if (amount == -1)
+				drop(block);
+			else
+				System.arraycopy(data, i * blockSize, block.data, 0, blockSize);
+		}
+		blockReady.wakeAll();
+		return amount != -1;
+	}
+
+	/**
+	 * Write back a dirty block, along with the dirty blocks of its file on
+	 * either side of it. Called holding <tt>lock</tt>.
+	 *
+	 * @return <tt>false</tt> if the blocks could not be written.
+	 */
+	private boolean writeBack(Block block) {
+		CachedFile f = block.file;
+		int first = block.blockNumber, last = first;
+		while (last - first <= maxReadAhead && isWritable(f, first - 1))
+			first--;
+		while (last - first <= maxReadAhead && isWritable(f, last + 1))
+			last++;
+
+		byte[] data = new byte[(last - first + 1) * blockSize];
+		Block[] run = new Block[last - first + 1];
+		for (int i = 0; i < run.length; i++) {
+			run[i] = f.blocks.get(first + i);
+			run[i].dirty = false;
+			run[i].busy = true;
+			System.arraycopy(run[i].data, 0, data, i * blockSize, blockSize);
+		}
+		int amount = Math.min(data.length, f.length - first * blockSize);
+
+		lock.release();
+		int written = f.file.write(first * blockSize, data, 0, amount);
+		lock.acquire();
+
+		for (Block b : run)
+			b.busy = false;
+		blockReady.wakeAll();
+		numWriteBacks += run.length;
+		if (written != amount) {
+			Lib.debug(dbgFS, "write-back to " + f.name + " failed");
+			for (Block b : run)
+				b.dirty = true;
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isWritable(CachedFile f, int blockNumber) {
+		Block block = f.blocks.get(blockNumber);
+		return block != null && block.dirty && !block.busy;
+	}
+
+	/**
+	 * Return a free frame, evicting the block the clock hand settles on and
+	 * writing it back first if it is dirty. Called holding <tt>lock</tt>;
+	 * the caller must <tt>insert()</tt> a block before releasing it.
+	 */
+	private Block allocate() {
+		while (true) {
+			Block victim = null;
+			for (int i = 0; i < 2 * numBlocks && victim == null; i++) {
+				Block block = frames[hand];
+				hand = (hand + 1) % numBlocks;
+				if (block.busy)
+					continue;
+				if (block.file == null || !block.used)
+					victim = block;
+				else
+					block.used = false;
+			}
+			if (victim == null) {
+				blockReady.sleep();
+			}
+			else if (victim.dirty) {
+				// give a block that could not be written a second chance,
+				// so the hand moves on to another victim
+				if (!writeBack(victim))
+					victim.used = true;
+			}
+			else {
+				if (victim.file != null)
+					drop(victim);
+				return victim;
+			}
+		}
+	}
+
+	private void insert(Block block, CachedFile f, int blockNumber) {
+		block.file = f;
+		block.blockNumber = blockNumber;
+		block.used = true;
+		Arrays.fill(block.data, (byte) 0);
+		f.blocks.put(blockNumber, block);
+	}
+
+	/**
+	 * Remove a clean block from the cache, and forget its file if that was
+	 * the file's last block and the file is closed.
+	 */
+	private void drop(Block block) {
+		CachedFile f = block.file;
+		f.blocks.remove(block.blockNumber);
+		block.file = null;
+		block.used = false;
+		if (f.blocks.isEmpty() && f.openCount == 0 && files.get(f.name) == f)
+			files.remove(f.name);
+	}
+
+	private void startFlusher() {
+		if (flusherStarted || flushInterval == 0)
+			return;
+		flusherStarted = true;
+		new KThread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}).setName("buffer cache flusher").fork();
+	}
+
+	/**
+	 * Write back the blocks that have been dirty for a whole interval, every
+	 * interval.
+	 */
+	private void flush() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(flushInterval);
+
+			lock.acquire();
+			long now = Machine.timer().getTime();
+			for (Block block : frames) {
+				if (block.dirty && !block.busy
+						&& now - block.dirtyTime >= flushInterval) {
+					int written = numWriteBacks;
+					writeBack(block);
+					numFlushed += numWriteBacks - written;
+				}
+			}
+			lock.release();
+		}
+	}
+
+	/**
+	 * Return a summary of the cache's activity: the hit ratio of block
+	 * lookups that needed data, the blocks read ahead, and the blocks written
+	 * back, followed by the summary of the file system below, unless it is
+	 * the stub file system.
+	 *
+	 * @return a string describing the cache.
+	 */
+	public String toString() {
+		int lookups = Math.max(1, numHits + numMisses);
+		return "cache hits " + numHits + ", misses " + numMisses + ", hit ratio "
+				+ (numHits * 1000 / lookups) / 10.0 + "%, read ahead "
+				+ numReadAhead + " blocks, wrote back " + numWriteBacks
+				+ " blocks, " + numFlushed + " of them by the flusher"
+				+ (fileSystem != Machine.stubFileSystem() ? "; " + fileSystem : "");
+	}
+
+	/** A frame of the cache, and the block of a file it holds. */
+	private class Block {
+		CachedFile file = null;
+		int blockNumber = -1;
+		byte[] data = new byte[blockSize];
+
+		/** Set if the block was used since the clock hand last passed. */
+		boolean used = false;
+		boolean dirty = false;
+		/** Set while the block is read or written. */
+		boolean busy = false;
+		/** When the block last went from clean to dirty. */
+		long dirtyTime;
+	}
+
+	/**
+	 * A file with cached blocks. All the opens of a file share one
+	 * <tt>CachedFile</tt>, and one open file of the file system below.
+	 */
+	private class CachedFile {
+		CachedFile(String name) {
+			this.name = name;
+		}
+
+		String name;
+		OpenFile file = null;
+		int openCount = 0, length = 0;
+		boolean removed = false;
+
+		/**
+		 * The value of <tt>writeStamp</tt> after the last write to the file,
+		 * or when it was first cached. Added to the stamp of the file below,
+		 * it changes on every write, before the blocks are written back, and
+		 * never goes back to a value reported for an older copy of the file.
+		 */
+		long version = writeStamp;
+		HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile f) {
+			super(BufferCache.this, f.name);
+			this.f = f;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (f == null || pos < 0 || length < 0
+					|| offset < 0 || offset + length > buf.length)
+				return -1;
+
+			lock.acquire();
+			int amount = Math.max(0, Math.min(length, f.length - pos));
+			int done = 0;
+			while (done < amount) {
+				int blockNumber = (pos + done) / blockSize;
+				int blockOffset = (pos + done) % blockSize;
+				int bytes = Math.min(blockSize - blockOffset, amount - done);
+				Block block = getBlock(f, blockNumber, this,
+						(pos + amount - 1) / blockSize);
+				if (block == null)
+					break;
+				System.arraycopy(block.data, blockOffset, buf, offset + done, bytes);
+				block.used = true;
+				nextBlock = blockNumber + 1;
+				done += bytes;
+			}
+			lock.release();
+			return (done == 0 && amount > 0) ? -1 : done;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (f == null || pos < 0 || length < 0
+					|| offset < 0 || offset + length > buf.length)
+				return -1;
+
+			lock.acquire();
+			int done = 0;
+			while (done < length) {
+				int blockNumber = (pos + done) / blockSize;
+				int blockOffset = (pos + done) % blockSize;
+				int bytes = Math.min(blockSize - blockOffset, length - done);
+				int inFile = Math.max(0, Math.min(blockSize,
+						f.length - blockNumber * blockSize));
+				boolean needData = inFile > 0
+						&& !(blockOffset == 0 && bytes >= inFile);
+				Block block = getBlock(f, blockNumber, needData ? this : null,
+						blockNumber);
+				if (block == null)
+					break;
+				System.arraycopy(buf, offset + done, block.data, blockOffset, bytes);
+				if (!block.dirty)
+					block.dirtyTime = Machine.timer().getTime();
+				block.dirty = true;
+				block.used = true;
+				done += bytes;
+				f.length = Math.max(f.length, pos + done);
+				f.version = ++writeStamp;
+			}
+			lock.release();
+			return (done == 0 && length > 0) ? -1 : done;
+		}
+
+		public int length() {
+			return (f == null) ? -1 : f.length;
+		}
+
+		public boolean sync() {
+			if (f == null)
+				return false;
+
+			lock.acquire();
+			boolean ok = BufferCache.this.sync(f);
+			lock.release();
+			return ok;
+		}
+
+		public long lastModified() {
+			if (f == null)
+				return -1;
+			long modified = f.file.lastModified();
+			return (modified == -1) ? -1 : modified + f.version;
+		}
+
+		public void close() {
+			if (f == null)
+				return;
+
+			lock.acquire();
+			boolean written = true;
+			if (f.openCount == 1 && f.removed)
+				discard(f);
+			else
+				written = BufferCache.this.sync(f);
+			if (--f.openCount == 0) {
+				// blocks that could not be written have nowhere left to go
+				if (!written)
+					discard(f);
+				f.file.close();
+				f.file = null;
+				if (f.blocks.isEmpty() && files.get(f.name) == f)
+					files.remove(f.name);
+			}
+			lock.release();
+			f = null;
+		}
+
+		CachedFile f;
+
+		/** The block after the last one read, and the read-ahead window. */
+		int nextBlock = 0, window = 0;
+	}
+
+	private FileSystem fileSystem;
+
+	private int numBlocks, maxReadAhead, flushInterval;
+
+	private Block[] frames;
+	private int hand = 0;
+
+	/** Counts every write through the cache, to every file. */
+	private long writeStamp = 0;
+
+	/** The files with cached blocks or opens, by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/**
+	 * Guards the cache. <tt>blockReady</tt> is signalled whenever a block
+	 * finishes I/O.
+	 */
+	private Lock lock;
+	private Condition blockReady;
+
+	private boolean flusherStarted = false;
+
+	private int numHits = 0, numMisses = 0, numReadAhead = 0;
+	private int numWriteBacks = 0, numFlushed = 0;
+
+	/** The size of a block. */
+	public static final int blockSize = Processor.pageSize;
+
+	private static final char dbgFS = 'f';
+}
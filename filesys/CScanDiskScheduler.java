@@ -0,0 +1,43 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+import java.util.LinkedList;
+
+/**
+ * Circular SCAN. The head only serves requests while sweeping toward higher
+ * sectors; when none is left ahead of it, it returns to the lowest waiting
+ * request and sweeps again. Every request waits at most one sweep, and
+ * requests at the edges of the disk wait no longer than those in the middle.
+ */
+public class CScanDiskScheduler implements DiskScheduler {
+	/**
+	 * Allocate a new C-SCAN scheduler.
+	 */
+	public CScanDiskScheduler() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public DiskRequest next(int headSector) {
+		DiskRequest ahead = null, lowest = null;
+		for (DiskRequest request : queue) {
+			if (request.sector > headSector
+					&& (ahead == null || request.sector < ahead.sector))
+				ahead = request;
+			if (lowest == null || request.sector < lowest.sector)
+				lowest = request;
+		}
+		DiskRequest best = (ahead != null) ? ahead : lowest;
+		queue.remove(best);
+		return best;
+	}
+
+	public String toString() {
+		return "C-SCAN";
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+}
@@ -0,0 +1,89 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+import java.util.LinkedList;
+
+/**
+ * A deadline scheduler. Reads and writes wait in separate queues, kept in
+ * the order they arrived. Reads are served before writes, since a thread is
+ * usually waiting on a read, but once
+ * <tt>DeadlineDiskScheduler.writesStarved</tt> reads in a row have been
+ * served ahead of waiting writes, a write goes next.
+ *
+ * <p>
+ * Within the chosen queue, requests are served in C-SCAN order, unless the
+ * oldest request has waited longer than its deadline:
+ * <tt>DeadlineDiskScheduler.readExpire</tt> ticks for a read and
+ * <tt>DeadlineDiskScheduler.writeExpire</tt> for a write. An expired request
+ * is served at once, and the sweep carries on from it.
+ */
+public class DeadlineDiskScheduler implements DiskScheduler {
+	/**
+	 * Allocate a new deadline scheduler.
+	 */
+	public DeadlineDiskScheduler() {
+		readExpire = Config.getInteger("DeadlineDiskScheduler.readExpire", 5000);
+		writeExpire = Config.getInteger("DeadlineDiskScheduler.writeExpire", 20000);
+		writesStarved = Config.getInteger("DeadlineDiskScheduler.writesStarved", 2);
+		Lib.assertTrue(readExpire > 0 && writeExpire > 0 && writesStarved >= 0);
+	}
+
+	public void add(DiskRequest request) {
+		(request.write ? writes : reads).add(request);
+	}
+
+	public DiskRequest next(int headSector) {
+		LinkedList<DiskRequest> queue;
+		if (!reads.isEmpty() && (writes.isEmpty() || starved < writesStarved)) {
+			queue = reads;
+			if (!writes.isEmpty())
+				starved++;
+		}
+		else if (!writes.isEmpty()) {
+			queue = writes;
+			starved = 0;
+		}
+		else {
+			return null;
+		}
+
+		DiskRequest oldest = queue.getFirst();
+		int expire = oldest.write ? writeExpire : readExpire;
+		if (Machine.timer().getTime() - oldest.arrivalTime >= expire) {
+			numExpired++;
+			return queue.removeFirst();
+		}
+
+		DiskRequest ahead = null, lowest = null;
+		for (DiskRequest request : queue) {
+			if (request.sector > headSector
+					&& (ahead == null || request.sector < ahead.sector))
+				ahead = request;
+			if (lowest == null || request.sector < lowest.sector)
+				lowest = request;
+		}
+		DiskRequest best = (ahead != null) ? ahead : lowest;
+		queue.remove(best);
+		return best;
+	}
+
+	/**
+	 * Return a summary of what the scheduler has done.
+	 *
+	 * @return a string describing the scheduler's activity.
+	 */
+	public String toString() {
+		return "deadline, " + numExpired + " requests served past their deadline";
+	}
+
+	private int readExpire, writeExpire, writesStarved;
+
+	private LinkedList<DiskRequest> reads = new LinkedList<DiskRequest>();
+	private LinkedList<DiskRequest> writes = new LinkedList<DiskRequest>();
+
+	/** Reads served in a row while writes waited. */
+	private int starved = 0;
+
+	private int numExpired = 0;
+}
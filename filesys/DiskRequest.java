@@ -0,0 +1,36 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * A request waiting for the disk: a run of consecutive sectors to read or
+ * write, and the thread blocked until it completes.
+ */
+public class DiskRequest {
+	DiskRequest(boolean write, int sector, int count, byte[] data, int offset) {
+		this.write = write;
+		this.sector = sector;
+		this.count = count;
+		this.track = SimulatedDisk.trackOf(sector);
+		this.data = data;
+		this.offset = offset;
+		arrivalTime = Machine.timer().getTime();
+	}
+
+	/** Set if the request writes the disk. */
+	public final boolean write;
+
+	/** The first sector, the number of sectors, and the track of the first. */
+	public final int sector, count, track;
+
+	/** The time the request was made. */
+	public final long arrivalTime;
+
+	byte[] data;
+	int offset;
+
+	/** Released when the request completes. */
+	Semaphore done = new Semaphore(0);
+}
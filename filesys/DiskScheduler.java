@@ -0,0 +1,33 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+
+/**
+ * Orders the requests waiting for the disk. <tt>SynchDisk</tt> hands the
+ * scheduler every request that arrives while the disk is busy, and asks it
+ * for the next one each time a request completes. The scheduler in use is
+ * named by the <tt>SynchDisk.scheduler</tt> key in <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Both methods are called with interrupts disabled, the second from the
+ * disk's interrupt handler, so neither may block.
+ *
+ * @see nachos.filesys.SynchDisk
+ */
+public interface DiskScheduler {
+	/**
+	 * Add a request to the queue.
+	 *
+	 * @param request the new request.
+	 */
+	public void add(DiskRequest request);
+
+	/**
+	 * Remove the request to serve next from the queue.
+	 *
+	 * @param headSector the last sector the disk transferred.
+	 * @return the next request, or <tt>null</tt> if no request is waiting.
+	 */
+	public DiskRequest next(int headSector);
+}
@@ -0,0 +1,31 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+import java.util.LinkedList;
+
+/**
+ * First come, first served: requests are served in the order they arrive,
+ * wherever the head has to go for them.
+ */
+public class FCFSDiskScheduler implements DiskScheduler {
+	/**
+	 * Allocate a new FCFS scheduler.
+	 */
+	public FCFSDiskScheduler() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public DiskRequest next(int headSector) {
+		return queue.poll();
+	}
+
+	public String toString() {
+		return "FCFS";
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+}
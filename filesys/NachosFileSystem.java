@@ -0,0 +1,895 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A file system kept on the machine's disk, selected by setting
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.filesys.NachosFileSystem</tt>.
+ *
+ * <p>
+ * Sector 0 holds the superblock. It is followed by a bitmap of the free
+ * sectors, then by the inode table, and then by the data sectors. Each inode
+ * records the length of its file, a version stamp taken whenever the file is
+ * created or written from a counter in the superblock that only grows, and
+ * up to <tt>maxExtents</tt> extents, each a run of
+ * consecutive sectors: <tt>directExtents</tt> in the inode itself, and the
+ * rest in an indirect sector.
+ *
+ * <p>
+ * A file that grows takes the sectors right after its last extent while they
+ * are free, so a file written on its own stays in one extent. Otherwise a new
+ * extent is placed in the first free run that leaves
+ * <tt>NachosFileSystem.growthReserve</tt> sectors of room both before and
+ * after it, so that files growing side by side do not interleave sector by
+ * sector.
+ *
+ * <p>
+ * There is a single directory, inode 0, holding a hash table of names with
+ * twice as many slots as there are inodes. A name is looked up by probing the
+ * slots from its hash onward, which usually reads one sector. A name may be
+ * up to <tt>maxNameLength</tt> bytes long.
+ *
+ * <p>
+ * The disk is formatted when it holds no file system, or when
+ * <tt>NachosFileSystem.format</tt> is set. Unless
+ * <tt>NachosFileSystem.importFiles</tt> is <tt>false</tt>, opening a file
+ * that is not on the disk copies it in from the stub file system, so the
+ * test programs can be run without being installed first.
+ */
+public class NachosFileSystem implements FileSystem {
+	/**
+	 * Allocate a new file system on the kernel's disk. The file system is
+	 * mounted, and the disk formatted if necessary, when a file is first
+	 * opened or removed, since the kernel is not yet running threads when
+	 * its file system is created.
+	 */
+	public NachosFileSystem() {
+		Lib.assertTrue(ThreadedKernel.disk != null,
+				"the Nachos file system needs Machine.disk");
+		disk = ThreadedKernel.disk;
+		numSectors = disk.getNumSectors();
+		growthReserve = Config.getInteger("NachosFileSystem.growthReserve", 16);
+		importFiles = Config.getBoolean("NachosFileSystem.importFiles", true);
+		Lib.assertTrue(growthReserve >= 0);
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Mount the file system if it is not mounted yet. Called holding
+	 * <tt>lock</tt>.
+	 */
+	private void mount() {
+		if (directory != null)
+			return;
+		if (Config.getBoolean("NachosFileSystem.format", false) || !readDisk())
+			format(Config.getInteger("NachosFileSystem.numInodes", 64));
+		directory = getInode(0);
+	}
+
+	/**
+	 * Read the superblock, the free sector bitmap and the inode table.
+	 *
+	 * @return <tt>false</tt> if the disk holds no file system.
+	 */
+	private boolean readDisk() {
+		byte[] superBlock = new byte[sectorSize];
+		disk.readSectors(0, 1, superBlock, 0);
+		if (Lib.bytesToInt(superBlock, 0) != magic
+				|| Lib.bytesToInt(superBlock, 4) != numSectors)
+			return false;
+
+		setLayout(Lib.bytesToInt(superBlock, 8));
+		disk.readSectors(bitmapStart, bitmapSectors, bitmap, 0);
+		disk.readSectors(inodeStart, inodeSectors, inodeTable, 0);
+
+		// the counter is written lazily, so it may be behind an inode
+		stamp = Lib.bytesToInt(superBlock, 12);
+		for (int inumber = 0; inumber < numInodes; inumber++) {
+			if (inodeType(inumber) != 0)
+				stamp = Math.max(stamp,
+						Lib.bytesToInt(inodeTable, inumber * inodeSize + 8));
+		}
+		Lib.debug(dbgFS, "mounted a file system of " + numInodes + " inodes");
+		return true;
+	}
+
+	/**
+	 * Write an empty file system to the disk.
+	 */
+	private void format(int inodes) {
+		Lib.assertTrue(inodes > 0);
+		setLayout(inodes);
+		System.out.println("Formatting the disk: " + numInodes + " inodes, "
+				+ (numSectors - dataStart) + " data sectors");
+
+		for (int sector = 0; sector < dataStart; sector++)
+			setUsed(sector, true);
+		disk.writeSectors(inodeStart, inodeSectors, inodeTable, 0);
+
+		Inode dir = new Inode(0);
+		dir.type = typeDirectory;
+		dir.length = directorySlots * slotSize;
+		Lib.assertTrue(allocate(dir, Lib.divRoundUp(dir.length, sectorSize)),
+				"disk too small for the directory");
+		for (int i = 0; i < dir.numExtents; i++) {
+			byte[] zeroes = new byte[dir.count[i] * sectorSize];
+			disk.writeSectors(dir.start[i], dir.count[i], zeroes, 0);
+		}
+		writeInode(dir);
+		disk.writeSectors(bitmapStart, bitmapSectors, bitmap, 0);
+
+		stamp = 0;
+		writeSuperBlock();
+	}
+
+	private void writeSuperBlock() {
+		byte[] superBlock = new byte[sectorSize];
+		Lib.bytesFromInt(superBlock, 0, magic);
+		Lib.bytesFromInt(superBlock, 4, numSectors);
+		Lib.bytesFromInt(superBlock, 8, numInodes);
+		Lib.bytesFromInt(superBlock, 12, stamp);
+		disk.writeSectors(0, 1, superBlock, 0);
+	}
+
+	/**
+	 * Return a new version stamp, greater than every stamp given out before
+	 * on this disk.
+	 */
+	private int nextStamp() {
+		return ++stamp;
+	}
+
+	private void setLayout(int inodes) {
+		numInodes = inodes;
+		directorySlots = 2 * numInodes;
+		bitmapStart = 1;
+		bitmapSectors = Lib.divRoundUp(numSectors, 8 * sectorSize);
+		inodeStart = bitmapStart + bitmapSectors;
+		inodeSectors = Lib.divRoundUp(numInodes * inodeSize, sectorSize);
+		dataStart = inodeStart + inodeSectors;
+		Lib.assertTrue(dataStart < numSectors, "disk too small for the inode table");
+
+		bitmap = new byte[bitmapSectors * sectorSize];
+		inodeTable = new byte[inodeSectors * sectorSize];
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		if (!checkName(name))
+			return null;
+
+		lock.acquire();
+		mount();
+		int slot = findSlot(name);
+		Inode inode;
+		if (slot != -1) {
+			inode = getInode(slotInumber(slot));
+		}
+		else if (truncate) {
+			inode = create(name);
+		}
+		else {
+			lock.release();
+			return importFile(name);
+		}
+		lock.release();
+		if (inode == null)
+			return null;
+
+		if (truncate && inode.length > 0) {
+			inode.lock.acquire();
+			lock.acquire();
+			free(inode);
+			inode.length = 0;
+			inode.version = nextStamp();
+			writeInode(inode);
+			lock.release();
+			inode.lock.release();
+		}
+		return new NachosOpenFile(name, inode);
+	}
+
+	public boolean remove(String name) {
+		if (!checkName(name))
+			return false;
+
+		lock.acquire();
+		mount();
+		int slot = findSlot(name);
+		if (slot == -1) {
+			lock.release();
+			return false;
+		}
+		int inumber = slotInumber(slot);
+		writeSlot(slot, deleted, "");
+
+		Inode inode = openInodes.get(inumber);
+		if (inode != null) {
+			// freed when the last open file is closed
+			inode.removed = true;
+		}
+		else {
+			inode = new Inode(inumber);
+			free(inode);
+			inode.type = 0;
+			writeInode(inode);
+		}
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * File data goes to the disk as it is written, but a write that does not
+	 * grow a file only marks its inode dirty until the file is closed. Write
+	 * those inodes, and the stamp counter.
+	 */
+	public boolean sync() {
+		lock.acquire();
+		if (directory != null) {
+			for (Inode inode : openInodes.values()) {
+				if (inode.dirty && !inode.removed)
+					writeInode(inode);
+			}
+			writeSuperBlock();
+		}
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * Copy a file from the stub file system onto the disk, and open the copy.
+	 */
+	private OpenFile importFile(String name) {
+		FileSystem stub = Machine.stubFileSystem();
+		if (!importFiles || stub == null)
+			return null;
+		OpenFile hostFile = stub.open(name, false);
+		if (hostFile == null)
+			return null;
+		int length = hostFile.length();
+		byte[] contents = new byte[Math.max(length, 0)];
+		boolean readOK = length >= 0
+				&& hostFile.read(0, contents, 0, length) == length;
+		hostFile.close();
+		if (!readOK)
+			return null;
+
+		lock.acquire();
+		if (findSlot(name) != -1) {
+			// imported by another thread meanwhile
+			lock.release();
+			return open(name, false);
+		}
+		Inode inode = create(name);
+		if (inode != null)
+			inode.lock.acquire();
+		lock.release();
+		if (inode == null)
+			return null;
+
+		OpenFile file = new NachosOpenFile(name, inode);
+		int written = write(inode, 0, contents, 0, length);
+		inode.lock.release();
+		if (written != length) {
+			file.close();
+			remove(name);
+			return null;
+		}
+		numImports++;
+		Lib.debug(dbgFS, "imported " + name + " (" + length + " bytes, "
+				+ inode.numExtents + " extents)");
+		return file;
+	}
+
+	/**
+	 * Create an empty file, returning its open inode, or <tt>null</tt> if
+	 * there is no free inode or directory slot. Called holding <tt>lock</tt>.
+	 */
+	private Inode create(String name) {
+		int slot = freeSlot;
+		if (slot == -1)
+			return null;
+		int inumber = 1;
+		while (inumber < numInodes && inodeType(inumber) != 0)
+			inumber++;
+		if (inumber == numInodes)
+			return null;
+
+		Inode inode = new Inode(inumber);
+		inode.type = typeFile;
+		inode.version = nextStamp();
+		writeInode(inode);
+		writeSlot(slot, inumber + 1, name);
+		inode.openCount = 1;
+		openInodes.put(inumber, inode);
+		return inode;
+	}
+
+	/**
+	 * Return the open inode of a file, reading it from the inode table if it
+	 * is not open yet. Called holding <tt>lock</tt>.
+	 */
+	private Inode getInode(int inumber) {
+		Inode inode = openInodes.get(inumber);
+		if (inode == null) {
+			inode = new Inode(inumber);
+			openInodes.put(inumber, inode);
+		}
+		inode.openCount++;
+		return inode;
+	}
+
+	/**
+	 * Give up an open inode, freeing the file if it has been removed and this
+	 * was the last open file. Called holding <tt>lock</tt>.
+	 */
+	private void releaseInode(Inode inode) {
+		if (--inode.openCount > 0)
+			return;
+		openInodes.remove(inode.inumber);
+		if (inode.removed) {
+			free(inode);
+			inode.type = 0;
+			writeInode(inode);
+		}
+		else if (inode.dirty) {
+			writeInode(inode);
+		}
+	}
+
+	/**
+	 * Write an inode to the inode table, and its indirect sector if it has
+	 * one. Called holding <tt>lock</tt>.
+	 */
+	private void writeInode(Inode inode) {
+		int base = inode.inumber * inodeSize;
+		Arrays.fill(inodeTable, base, base + inodeSize, (byte) 0);
+		if (inode.type != 0) {
+			Lib.bytesFromInt(inodeTable, base, inode.type);
+			Lib.bytesFromInt(inodeTable, base + 4, inode.length);
+			Lib.bytesFromInt(inodeTable, base + 8, inode.version);
+			Lib.bytesFromInt(inodeTable, base + 12, inode.numExtents);
+			Lib.bytesFromInt(inodeTable, base + 16, inode.indirect);
+			for (int i = 0; i < Math.min(inode.numExtents, directExtents); i++) {
+				Lib.bytesFromInt(inodeTable, base + 20 + 8 * i, inode.start[i]);
+				Lib.bytesFromInt(inodeTable, base + 24 + 8 * i, inode.count[i]);
+			}
+		}
+		int sector = base / sectorSize;
+		disk.writeSectors(inodeStart + sector, 1, inodeTable, sector * sectorSize);
+
+		if (inode.type != 0 && inode.numExtents > directExtents) {
+			byte[] data = new byte[sectorSize];
+			for (int i = directExtents; i < inode.numExtents; i++) {
+				Lib.bytesFromInt(data, 8 * (i - directExtents), inode.start[i]);
+				Lib.bytesFromInt(data, 8 * (i - directExtents) + 4, inode.count[i]);
+			}
+			disk.writeSectors(inode.indirect, 1, data, 0);
+		}
+		inode.dirty = false;
+	}
+
+	private int inodeType(int inumber) {
+		return Lib.bytesToInt(inodeTable, inumber * inodeSize);
+	}
+
+	/**
+	 * Give more sectors to a file, extending its last extent while the
+	 * sectors after it are free. Called holding <tt>lock</tt>; the caller
+	 * writes the inode.
+	 *
+	 * @return <tt>false</tt> if the disk is full or the file has run out of
+	 * extents, in which case the file may have been given some sectors.
+	 */
+	private boolean allocate(Inode inode, int sectors) {
+		int low = numSectors, high = -1;
+		boolean ok = true;
+		while (sectors > 0) {
+			int n = 0, first = -1;
+			if (inode.numExtents > 0) {
+				int last = inode.numExtents - 1;
+				first = inode.start[last] + inode.count[last];
+				while (n < sectors && first + n < numSectors && isFree(first + n))
+					n++;
+				if (n > 0)
+					inode.count[last] += n;
+			}
+			if (n == 0) {
+				if (inode.numExtents == directExtents && inode.indirect == 0) {
+					inode.indirect = findRun(1, 0);
+					if (inode.indirect == -1) {
+						inode.indirect = 0;
+						ok = false;
+						break;
+					}
+					setUsed(inode.indirect, true);
+					low = Math.min(low, inode.indirect);
+					high = Math.max(high, inode.indirect);
+				}
+				first = (inode.numExtents < maxExtents)
+						? findRun(sectors, growthReserve) : -1;
+				if (first == -1) {
+					ok = false;
+					break;
+				}
+				while (n < sectors && first + n < numSectors && isFree(first + n))
+					n++;
+				inode.start[inode.numExtents] = first;
+				inode.count[inode.numExtents] = n;
+				inode.numExtents++;
+			}
+			for (int s = first; s < first + n; s++)
+				setUsed(s, true);
+			low = Math.min(low, first);
+			high = Math.max(high, first + n - 1);
+			sectors -= n;
+		}
+		if (high >= low)
+			writeBitmap(low, high);
+		return ok;
+	}
+
+	/**
+	 * Find room for a new extent of <i>need</i> sectors. The extent goes in
+	 * the first free run long enough to leave <i>reserve</i> sectors free on
+	 * either side of it, so that the file before it and the new extent both
+	 * have room to grow. Failing that, it goes at the start of the longest
+	 * free run.
+	 *
+	 * @return the first sector of the extent, or -1 if the disk is full.
+	 */
+	private int findRun(int need, int reserve) {
+		int best = -1, bestLength = 0;
+		for (int s = dataStart; s < numSectors;) {
+			if (!isFree(s)) {
+				s++;
+				continue;
+			}
+			int length = 0;
+			while (s + length < numSectors && isFree(s + length))
+				length++;
+			int gap = (s == dataStart) ? 0 : reserve;
+			if (length >= gap + need + reserve)
+				return s + gap;
+			if (length > bestLength) {
+				best = s;
+				bestLength = length;
+			}
+			s += length;
+		}
+		return best;
+	}
+
+	/**
+	 * Give back every sector of a file. Called holding <tt>lock</tt>; the
+	 * caller writes the inode.
+	 */
+	private void free(Inode inode) {
+		int low = numSectors, high = -1;
+		for (int i = 0; i < inode.numExtents; i++) {
+			for (int s = inode.start[i]; s < inode.start[i] + inode.count[i]; s++)
+				setUsed(s, false);
+			low = Math.min(low, inode.start[i]);
+			high = Math.max(high, inode.start[i] + inode.count[i] - 1);
+		}
+		if (inode.indirect != 0) {
+			setUsed(inode.indirect, false);
+			low = Math.min(low, inode.indirect);
+			high = Math.max(high, inode.indirect);
+		}
+		inode.numExtents = 0;
+		inode.indirect = 0;
+		if (high >= low)
+			writeBitmap(low, high);
+	}
+
+	private boolean isFree(int sector) {
+		return (bitmap[sector / 8] & (1 << (sector % 8))) == 0;
+	}
+
+	private void setUsed(int sector, boolean used) {
+		if (used)
+			bitmap[sector / 8] |= (byte) (1 << (sector % 8));
+		else
+			bitmap[sector / 8] &= (byte) ~(1 << (sector % 8));
+	}
+
+	/** Write the bitmap sectors covering a range of sectors. */
+	private void writeBitmap(int low, int high) {
+		int first = low / (8 * sectorSize), last = high / (8 * sectorSize);
+		disk.writeSectors(bitmapStart + first, last - first + 1, bitmap,
+				first * sectorSize);
+	}
+
+	/**
+	 * Read or write part of a file whose sectors are all allocated, one
+	 * request per run of consecutive sectors. A write only reads a sector
+	 * first if it keeps some of the file's data.
+	 *
+	 * @param length the file's length before a write.
+	 */
+	private void transfer(Inode inode, int pos, byte[] buf, int offset,
+			int amount, boolean write) {
+		int done = 0;
+		while (done < amount) {
+			int filePos = pos + done;
+			int sectorOffset = filePos % sectorSize;
+			int[] run = inode.locate(filePos / sectorSize);
+			int bytes = Math.min(amount - done, run[1] * sectorSize - sectorOffset);
+			int count = Lib.divRoundUp(sectorOffset + bytes, sectorSize);
+			byte[] data = new byte[count * sectorSize];
+
+			if (write) {
+				if (sectorOffset != 0)
+					disk.readSectors(run[0], 1, data, 0);
+				int end = sectorOffset + bytes;
+				if (end % sectorSize != 0 && filePos + bytes < inode.length
+						&& (count > 1 || sectorOffset == 0))
+					disk.readSectors(run[0] + count - 1, 1, data,
+							(count - 1) * sectorSize);
+				System.arraycopy(buf, offset + done, data, sectorOffset, bytes);
+				disk.writeSectors(run[0], count, data, 0);
+			}
+			else {
+				disk.readSectors(run[0], count, data, 0);
+				System.arraycopy(data, sectorOffset, buf, offset + done, bytes);
+			}
+			done += bytes;
+		}
+	}
+
+	/**
+	 * Write to a file, giving it more sectors if it grows. A gap between the
+	 * old end of the file and <i>pos</i> reads as zeroes. Called holding
+	 * <tt>inode.lock</tt>.
+	 *
+	 * @return the number of bytes written, which is less than <i>amount</i>
+	 * if the disk filled up, or -1 if nothing could be written.
+	 */
+	private int write(Inode inode, int pos, byte[] buf, int offset, int amount) {
+		if (amount == 0)
+			return 0;
+
+		boolean grew = false;
+		int allocated = inode.numSectors() * sectorSize;
+		if (pos + amount > allocated) {
+			lock.acquire();
+			allocate(inode, Lib.divRoundUp(pos + amount, sectorSize)
+					- inode.numSectors());
+			lock.release();
+			allocated = inode.numSectors() * sectorSize;
+			amount = Math.min(amount, allocated - pos);
+			grew = true;
+		}
+		if (amount <= 0) {
+			if (grew) {
+				lock.acquire();
+				writeInode(inode);
+				lock.release();
+			}
+			return -1;
+		}
+
+		if (pos > inode.length) {
+			byte[] zeroes = new byte[pos - inode.length];
+			transfer(inode, inode.length, zeroes, 0, zeroes.length, true);
+			inode.length = pos;
+		}
+		transfer(inode, pos, buf, offset, amount, true);
+		inode.version = nextStamp();
+		if (pos + amount > inode.length) {
+			inode.length = pos + amount;
+			grew = true;
+		}
+
+		lock.acquire();
+		if (grew)
+			writeInode(inode);
+		else
+			inode.dirty = true;
+		lock.release();
+		return amount;
+	}
+
+	/**
+	 * Return the slot holding a name, or -1 if it is not in the directory,
+	 * leaving in <tt>freeSlot</tt> the slot a new entry for the name would
+	 * take, or -1 if the directory is full. Called holding <tt>lock</tt>.
+	 */
+	private int findSlot(String name) {
+		freeSlot = -1;
+		int hash = (name.hashCode() & 0x7FFFFFFF) % directorySlots;
+		for (int i = 0; i < directorySlots; i++) {
+			int slot = (hash + i) % directorySlots;
+			int ref = slotRef(slot);
+			if (ref == empty) {
+				if (freeSlot == -1)
+					freeSlot = slot;
+				return -1;
+			}
+			if (ref == deleted) {
+				if (freeSlot == -1)
+					freeSlot = slot;
+			}
+			else if (name.equals(Lib.bytesToString(readDirectorySector(slot),
+					slotOffset(slot) + 4, maxNameLength))) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	private int slotRef(int slot) {
+		return Lib.bytesToInt(readDirectorySector(slot), slotOffset(slot));
+	}
+
+	private int slotInumber(int slot) {
+		return slotRef(slot) - 1;
+	}
+
+	private void writeSlot(int slot, int ref, String name) {
+		byte[] data = readDirectorySector(slot);
+		int offset = slotOffset(slot);
+		Arrays.fill(data, offset, offset + slotSize, (byte) 0);
+		Lib.bytesFromInt(data, offset, ref);
+		byte[] bytes = name.getBytes();
+		System.arraycopy(bytes, 0, data, offset + 4, bytes.length);
+		transfer(directory, slot * slotSize - offset, data, 0, sectorSize, true);
+	}
+
+	/**
+	 * Return the directory sector holding a slot. The last sector read is
+	 * kept, since probes for a name usually stay within one sector.
+	 */
+	private byte[] readDirectorySector(int slot) {
+		int sector = slot * slotSize / sectorSize;
+		if (sector != cachedSector) {
+			transfer(directory, sector * sectorSize, directoryData, 0,
+					sectorSize, false);
+			cachedSector = sector;
+		}
+		return directoryData;
+	}
+
+	private static int slotOffset(int slot) {
+		return slot * slotSize % sectorSize;
+	}
+
+	private static boolean checkName(String name) {
+		if (name.length() == 0 || name.getBytes().length > maxNameLength)
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) <= ' ' || name.charAt(i) >= 0x7F)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return a summary of the file system: its files, their extents and the
+	 * free space.
+	 *
+	 * @return a string describing the file system.
+	 */
+	public String toString() {
+		if (directory == null)
+			return "not mounted";
+
+		int files = 0, extents = 0, free = 0;
+		for (int inumber = 1; inumber < numInodes; inumber++) {
+			if (inodeType(inumber) != 0) {
+				files++;
+				extents += Lib.bytesToInt(inodeTable, inumber * inodeSize + 12);
+			}
+		}
+		for (int s = dataStart; s < numSectors; s++) {
+			if (isFree(s))
+				free++;
+		}
+		return files + " files in " + extents + " extents, " + free + " of "
+				+ (numSectors - dataStart) + " data sectors free, "
+				+ numImports + " files imported";
+	}
+
+	/**
+	 * Test the layout of files written side by side. Two files are written
+	 * in alternating chunks, and then each is read back with a single call,
+	 * which takes one disk request per extent. With a growth reserve, each
+	 * file's chunks stay in a few extents and the read seldom waits for the
+	 * disk to come round.
+	 */
+	public static void selfTest() {
+		FileSystem fs = ThreadedKernel.fileSystem;
+		if (!(fs instanceof NachosFileSystem))
+			return;
+
+		int chunk = 4 * sectorSize, numChunks = 16;
+		OpenFile[] files = { fs.open("fstest.a", true), fs.open("fstest.b", true) };
+		byte[] data = new byte[chunk * numChunks];
+
+		for (int i = 0; i < numChunks; i++) {
+			for (int f = 0; f < files.length; f++) {
+				Arrays.fill(data, 0, chunk, (byte) (f * numChunks + i));
+				Lib.assertTrue(files[f].write(i * chunk, data, 0, chunk) == chunk);
+			}
+		}
+		for (int f = 0; f < files.length; f++) {
+			Inode inode = ((NachosOpenFile) files[f]).inode;
+			long start = Machine.timer().getTime();
+			Lib.assertTrue(files[f].read(0, data, 0, data.length) == data.length);
+			long ticks = Machine.timer().getTime() - start;
+			for (int i = 0; i < data.length; i += chunk)
+				Lib.assertTrue(data[i] == (byte) (f * numChunks + i / chunk));
+
+			System.out.println("NachosFileSystem self test: " + files[f].getName()
+					+ " has " + inode.numExtents + " extents, read in " + ticks
+					+ " ticks");
+			files[f].close();
+			fs.remove(files[f].getName());
+		}
+	}
+
+	/**
+	 * An inode in memory. The inode of a file is kept while the file is open,
+	 * and its lock is held while the file's data or length change.
+	 */
+	private class Inode {
+		/** Read an inode from the inode table. */
+		Inode(int inumber) {
+			this.inumber = inumber;
+			int base = inumber * inodeSize;
+			type = Lib.bytesToInt(inodeTable, base);
+			if (type == 0)
+				return;
+			length = Lib.bytesToInt(inodeTable, base + 4);
+			version = Lib.bytesToInt(inodeTable, base + 8);
+			numExtents = Lib.bytesToInt(inodeTable, base + 12);
+			indirect = Lib.bytesToInt(inodeTable, base + 16);
+			for (int i = 0; i < Math.min(numExtents, directExtents); i++) {
+				start[i] = Lib.bytesToInt(inodeTable, base + 20 + 8 * i);
+				count[i] = Lib.bytesToInt(inodeTable, base + 24 + 8 * i);
+			}
+			if (numExtents > directExtents) {
+				byte[] data = new byte[sectorSize];
+				disk.readSectors(indirect, 1, data, 0);
+				for (int i = directExtents; i < numExtents; i++) {
+					start[i] = Lib.bytesToInt(data, 8 * (i - directExtents));
+					count[i] = Lib.bytesToInt(data, 8 * (i - directExtents) + 4);
+				}
+			}
+		}
+
+		int numSectors() {
+			int sectors = 0;
+			for (int i = 0; i < numExtents; i++)
+				sectors += count[i];
+			return sectors;
+		}
+
+		/**
+		 * Return the disk sector holding a sector of the file, and the number
+		 * of sectors from there to the end of its extent.
+		 */
+		int[] locate(int fileSector) {
+			for (int i = 0; i < numExtents; i++) {
+				if (fileSector < count[i])
+					return new int[] { start[i] + fileSector, count[i] - fileSector };
+				fileSector -= count[i];
+			}
+			Lib.assertNotReached("sector beyond the end of the file");
+			return null;
+		}
+
+		int inumber, type, length = 0, version = 0;
+		int numExtents = 0, indirect = 0;
+		int[] start = new int[maxExtents], count = new int[maxExtents];
+
+		int openCount = 0;
+		/** Set if the file was removed while open, or its version changed. */
+		boolean removed = false, dirty = false;
+		Lock lock = new Lock();
+	}
+
+	private class NachosOpenFile extends OpenFileWithPosition {
+		NachosOpenFile(String name, Inode inode) {
+			super(NachosFileSystem.this, name);
+			this.inode = inode;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0
+					|| offset < 0 || offset + length > buf.length)
+				return -1;
+
+			inode.lock.acquire();
+			int amount = Math.max(0, Math.min(length, inode.length - pos));
+			transfer(inode, pos, buf, offset, amount, false);
+			inode.lock.release();
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (inode == null || pos < 0 || length < 0
+					|| offset < 0 || offset + length > buf.length)
+				return -1;
+			if (length == 0)
+				return 0;
+
+			inode.lock.acquire();
+			int amount = NachosFileSystem.this.write(inode, pos, buf, offset, length);
+			inode.lock.release();
+			return amount;
+		}
+
+		public int length() {
+			return (inode == null) ? -1 : inode.length;
+		}
+
+		public long lastModified() {
+			return (inode == null) ? -1 : inode.version;
+		}
+
+		public void close() {
+			if (inode == null)
+				return;
+			lock.acquire();
+			releaseInode(inode);
+			lock.release();
+			inode = null;
+		}
+
+		Inode inode;
+	}
+
+	private SynchDisk disk;
+
+	/** Guards the directory, the free sector bitmap and the inode table. */
+	private Lock lock;
+
+	private int numSectors, numInodes, directorySlots;
+	private int bitmapStart, bitmapSectors, inodeStart, inodeSectors, dataStart;
+	private int growthReserve;
+	private boolean importFiles;
+
+	/** The free sector bitmap and the inode table, as they are on the disk. */
+	private byte[] bitmap, inodeTable;
+
+	/** The inodes of the open files, and of the directory. */
+	private HashMap<Integer, Inode> openInodes = new HashMap<Integer, Inode>();
+	private Inode directory;
+
+	/** The directory sector read last, and its number. */
+	private byte[] directoryData = new byte[sectorSize];
+	private int cachedSector = -1;
+
+	/** Set by <tt>findSlot()</tt>. */
+	private int freeSlot;
+
+	/** The last version stamp given out. */
+	private int stamp = 0;
+
+	private int numImports = 0;
+
+	private static final int magic = 0x4E414653;
+
+	private static final int sectorSize = SimulatedDisk.sectorSize;
+
+	private static final int inodeSize = 64, slotSize = 32;
+
+	/** The extents held in an inode, and in all. */
+	public static final int directExtents = 5, maxExtents = directExtents + 16;
+
+	/** The longest file name, in bytes. */
+	public static final int maxNameLength = slotSize - 4;
+
+	private static final int typeFile = 1, typeDirectory = 2;
+
+	/** Directory slot references that hold no name. */
+	private static final int empty = 0, deleted = -1;
+
+	private static final char dbgFS = 'f';
+}
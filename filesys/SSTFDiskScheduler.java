@@ -0,0 +1,45 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+import java.util.LinkedList;
+
+/**
+ * Shortest seek time first: the request on the track nearest the head is
+ * served next, the one nearest the head on that track first. Requests far
+ * from a busy region can starve.
+ */
+public class SSTFDiskScheduler implements DiskScheduler {
+	/**
+	 * Allocate a new SSTF scheduler.
+	 */
+	public SSTFDiskScheduler() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public DiskRequest next(int headSector) {
+		int headTrack = SimulatedDisk.trackOf(headSector);
+		DiskRequest best = null;
+		for (DiskRequest request : queue) {
+			if (best == null || distance(request, headTrack, headSector)
+					< distance(best, headTrack, headSector))
+				best = request;
+		}
+		queue.remove(best);
+		return best;
+	}
+
+	private static long distance(DiskRequest request, int headTrack, int headSector) {
+		return (long) Math.abs(request.track - headTrack) * SimulatedDisk.sectorsPerTrack
+				+ Math.abs(request.sector - headSector);
+	}
+
+	public String toString() {
+		return "SSTF";
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+}
@@ -0,0 +1,57 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.filesys.*;
+import java.util.LinkedList;
+
+/**
+ * The elevator algorithm, in its LOOK form. The head sweeps in one direction
+ * serving the requests in its way, and turns round when no request is left
+ * ahead of it rather than travelling on to the edge of the disk as SCAN
+ * does; the order requests are served in is the same.
+ */
+public class ScanDiskScheduler implements DiskScheduler {
+	/**
+	 * Allocate a new SCAN scheduler.
+	 */
+	public ScanDiskScheduler() {
+	}
+
+	public void add(DiskRequest request) {
+		queue.add(request);
+	}
+
+	public DiskRequest next(int headSector) {
+		if (queue.isEmpty())
+			return null;
+
+		DiskRequest best = nearestAhead(headSector);
+		if (best == null) {
+			up = !up;
+			best = nearestAhead(headSector);
+		}
+		queue.remove(best);
+		return best;
+	}
+
+	/** The nearest request at or beyond the head in the current direction. */
+	private DiskRequest nearestAhead(int headSector) {
+		DiskRequest best = null;
+		for (DiskRequest request : queue) {
+			boolean ahead = up ? request.sector >= headSector : request.sector <= headSector;
+			if (ahead && (best == null || Math.abs(request.sector - headSector)
+					< Math.abs(best.sector - headSector)))
+				best = request;
+		}
+		return best;
+	}
+
+	public String toString() {
+		return "SCAN";
+	}
+
+	private LinkedList<DiskRequest> queue = new LinkedList<DiskRequest>();
+
+	/** Set while the head is sweeping toward higher sectors. */
+	private boolean up = true;
+}
@@ -0,0 +1,199 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+import java.util.Arrays;
+
+/**
+ * Provides a simple, synchronized interface to the machine's disk. A thread
+ * that reads or writes blocks until its request completes, letting other
+ * threads run meanwhile. Requests made while the disk is busy wait for the
+ * <tt>DiskScheduler</tt> named by <tt>SynchDisk.scheduler</tt> to pick them;
+ * each time a request completes, the interrupt handler starts the next.
+ *
+ * <p>
+ * The latency of every request, from the time it was made to the time it
+ * completed, is kept, so that <tt>toString()</tt> can report percentiles
+ * along with the throughput of the disk.
+ */
+public class SynchDisk {
+	/**
+	 * Allocate a new <tt>SynchDisk</tt>.
+	 *
+	 * @param disk the underlying disk.
+	 */
+	public SynchDisk(SimulatedDisk disk) {
+		this.disk = disk;
+		scheduler = (DiskScheduler) Lib.constructObject(Config.getString(
+				"SynchDisk.scheduler", "nachos.filesys.ScanDiskScheduler"));
+
+		disk.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the size of the disk, in sectors.
+	 */
+	public int getNumSectors() {
+		return disk.getNumSectors();
+	}
+
+	/**
+	 * Read consecutive sectors, blocking until they have arrived.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		request(new DiskRequest(false, sector, count, data, offset));
+	}
+
+	/**
+	 * Write consecutive sectors, blocking until they are on the disk.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		request(new DiskRequest(true, sector, count, data, offset));
+	}
+
+	private void request(DiskRequest request) {
+		Lib.assertTrue(request.sector >= 0 && request.count > 0
+				&& request.sector + request.count <= disk.getNumSectors());
+
+		boolean intStatus = Machine.interrupt().disable();
+		if (current == null)
+			start(request);
+		else
+			scheduler.add(request);
+		request.done.P();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private void start(DiskRequest request) {
+		current = request;
+		startTime = Machine.timer().getTime();
+		if (firstArrival == -1)
+			firstArrival = request.arrivalTime;
+		if (request.write)
+			disk.writeSectors(request.sector, request.count, request.data,
+					request.offset);
+		else
+			disk.readSectors(request.sector, request.count, request.data,
+					request.offset);
+	}
+
+	private void requestDone() {
+		long now = Machine.timer().getTime();
+		DiskRequest request = current;
+		current = null;
+
+		busyTicks += now - startTime;
+		lastCompletion = now;
+		numSectors += request.count;
+		if (numRequests == latencies.length)
+			latencies = Arrays.copyOf(latencies, 2 * latencies.length);
+		latencies[numRequests++] = (int) (now - request.arrivalTime);
+		headSector = request.sector + request.count - 1;
+		request.done.V();
+
+		DiskRequest next = scheduler.next(headSector);
+		if (next != null)
+			start(next);
+	}
+
+	/**
+	 * Return a summary of the requests served so far: the sectors moved per
+	 * thousand ticks from the first request to the last completion, how much
+	 * of that time the disk was busy, and the latency percentiles.
+	 *
+	 * @return a string describing the disk's activity.
+	 */
+	public String toString() {
+		if (numRequests == 0)
+			return "no requests, scheduler " + scheduler;
+
+		int[] sorted = Arrays.copyOf(latencies, numRequests);
+		Arrays.sort(sorted);
+		long elapsed = Math.max(1, lastCompletion - firstArrival);
+		return numRequests + " requests, " + numSectors + " sectors in "
+				+ elapsed + " ticks (" + (numSectors * 10000 / elapsed) / 10.0
+				+ " per 1000 ticks, busy " + (busyTicks * 100 / elapsed)
+				+ "%), latency p50 " + percentile(sorted, 50) + ", p90 "
+				+ percentile(sorted, 90) + ", p99 " + percentile(sorted, 99)
+				+ ", max " + sorted[numRequests - 1] + " ticks, scheduler "
+				+ scheduler;
+	}
+
+	private static int percentile(int[] sorted, int p) {
+		return sorted[(sorted.length - 1) * p / 100];
+	}
+
+	/**
+	 * Test the disk under concurrent load. Several threads each read random
+	 * sectors and write some of them back unchanged, while another reads a
+	 * run of tracks in page-sized requests, so the data on the disk is left
+	 * as it was.
+	 */
+	public static void selfTest() {
+		final SynchDisk disk = ThreadedKernel.disk;
+		final int numRandom = 4, numRequests = 24;
+		KThread[] threads = new KThread[numRandom + 1];
+
+		for (int i = 0; i < numRandom; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					byte[] data = new byte[SimulatedDisk.sectorSize];
+					for (int j = 0; j < numRequests; j++) {
+						int sector = Lib.random(disk.getNumSectors());
+						disk.readSectors(sector, 1, data, 0);
+						if (Lib.random(4) == 0)
+							disk.writeSectors(sector, 1, data, 0);
+					}
+				}
+			}).setName("disk test " + i);
+		}
+		threads[numRandom] = new KThread(new Runnable() {
+			public void run() {
+				int count = Processor.pageSize / SimulatedDisk.sectorSize;
+				byte[] data = new byte[Processor.pageSize];
+				int sectors = Math.min(disk.getNumSectors(), 4 * SimulatedDisk.sectorsPerTrack);
+				for (int sector = 0; sector + count <= sectors; sector += count)
+					disk.readSectors(sector, count, data, 0);
+			}
+		}).setName("disk test sequential");
+
+		for (KThread thread : threads)
+			thread.fork();
+		for (KThread thread : threads)
+			thread.join();
+		System.out.println("SynchDisk self test: " + disk);
+	}
+
+	private SimulatedDisk disk;
+
+	private DiskScheduler scheduler;
+
+	/** The request the disk is serving, or <tt>null</tt> if it is idle. */
+	private DiskRequest current = null;
+
+	/** The last sector transferred. */
+	private int headSector = 0;
+
+	private long startTime, busyTicks = 0;
+	private long firstArrival = -1, lastCompletion = 0;
+	private long numSectors = 0;
+	private int numRequests = 0;
+	private int[] latencies = new int[64];
+}
@@ -32,4 +32,12 @@ public interface FileSystem {
 	 * @return <tt>true</tt> if the file was successfully removed.
 	 */
 	public boolean remove(String name);
+
+	/**
+	 * Write any data the file system is holding back to its files, and wait
+	 * until it is written.
+	 * 
+	 * @return <tt>true</tt> if all the data was successfully written.
+	 */
+	public boolean sync();
 }
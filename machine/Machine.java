@@ -183,11 +183,17 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
+		if (Config.getBoolean("Machine.disk", false))
+			disk = new SimulatedDisk(privilege, testDirectory);
+
 		if (Config.getBoolean("Machine.stubFileSystem"))
 			stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
+
+		if (Config.getBoolean("Machine.swapDevice", false))
+			swapDevice = new SwapDevice(privilege, testDirectory);
 	}
 
 	private static void checkUserClasses() {
@@ -358,6 +364,24 @@ public final class Machine {
 		return networkLink;
 	}
 
+	/**
+	 * Return the disk.
+	 * 
+	 * @return the disk, or <tt>null</tt> if it is not present.
+	 */
+	public static SimulatedDisk disk() {
+		return disk;
+	}
+
+	/**
+	 * Return the swap device.
+	 * 
+	 * @return the swap device, or <tt>null</tt> if it is not present.
+	 */
+	public static SwapDevice swapDevice() {
+		return swapDevice;
+	}
+
 	/**
 	 * Return the autograder.
 	 * 
@@ -381,6 +405,10 @@ public final class Machine {
 
 	private static NetworkLink networkLink = null;
 
+	private static SwapDevice swapDevice = null;
+
+	private static SimulatedDisk disk = null;
+
 	private static AutoGrader autoGrader = null;
 
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -86,6 +86,26 @@ public class OpenFile {
 		return -1;
 	}
 
+	/**
+	 * Get the time this file was last modified, in milliseconds since the
+	 * epoch.
+	 * 
+	 * @return the modification time of this file, or -1 if it is not known.
+	 */
+	public long lastModified() {
+		return -1;
+	}
+
+	/**
+	 * Write any data written to this file that is still being held back, and
+	 * wait until it is written.
+	 * 
+	 * @return <tt>true</tt> if all the data was successfully written.
+	 */
+	public boolean sync() {
+		return true;
+	}
+
 	/**
 	 * Close this file and release any associated system resources.
 	 */
@@ -0,0 +1,177 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.machine.*;
+
+/**
+ * A page table that stores each page table entry in a single <tt>int</tt>.
+ * The table is a two-level radix tree: the upper bits of a virtual page number
+ * select a directory slot, and the lower <tt>leafBits</tt> bits select an
+ * entry in a leaf array. Leaves are only allocated when an entry in their
+ * range is first set, so a sparse address space costs one directory plus a
+ * leaf per populated region, however high its addresses are.
+ *
+ * <p>
+ * An entry holds the physical page number in its low 24 bits, followed by the
+ * <tt>valid</tt>, <tt>readOnly</tt>, <tt>used</tt> and <tt>dirty</tt> bits,
+ * and the <tt>superPage</tt> bit read by the TLB walker. The remaining high
+ * bits are reserved. An entry of zero is invalid.
+ *
+ * @see nachos.machine.Processor#setPageTable(PackedPageTable)
+ */
+public final class PackedPageTable {
+	/**
+	 * Allocate a new, empty page table covering the whole address space.
+	 */
+	public PackedPageTable() {
+		directory = new int[Processor.maxPages >>> leafBits][];
+	}
+
+	/**
+	 * Build an entry from its fields.
+	 *
+	 * @param ppn the physical page number.
+	 * @param valid the valid bit.
+	 * @param readOnly the read-only bit.
+	 * @param used the used bit.
+	 * @param dirty the dirty bit.
+	 * @return the packed entry.
+	 */
+	public static int pack(int ppn, boolean valid, boolean readOnly,
+			boolean used, boolean dirty) {
+		Lib.assertTrue(ppn >= 0 && ppn <= ppnMask);
+
+		return ppn | (valid ? validBit : 0) | (readOnly ? readOnlyBit : 0)
+				| (used ? usedBit : 0) | (dirty ? dirtyBit : 0);
+	}
+
+	/**
+	 * Return the physical page number of an entry.
+	 *
+	 * @param pte the packed entry.
+	 * @return the physical page number.
+	 */
+	public static int ppn(int pte) {
+		return pte & ppnMask;
+	}
+
+	/**
+	 * Return the entry for a virtual page, or zero if none has been set.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return the packed entry.
+	 */
+	public int get(int vpn) {
+		int[] leaf = directory[vpn >>> leafBits];
+		if (leaf == null)
+			return 0;
+		return leaf[vpn & leafMask];
+	}
+
+	/**
+	 * Set the entry for a virtual page, allocating its leaf if needed.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param pte the packed entry.
+	 */
+	public void set(int vpn, int pte) {
+		int[] leaf = directory[vpn >>> leafBits];
+		if (leaf == null) {
+			if (pte == 0)
+				return;
+			leaf = directory[vpn >>> leafBits] = new int[leafSize];
+			numLeaves++;
+		}
+		leaf[vpn & leafMask] = pte;
+	}
+
+	/**
+	 * Set bits in an existing entry. Used by the processor to record that a
+	 * page was used or written.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param bits the bits to set.
+	 */
+	public void setBits(int vpn, int bits) {
+		int[] leaf = directory[vpn >>> leafBits];
+		Lib.assertTrue(leaf != null);
+		leaf[vpn & leafMask] |= bits;
+	}
+
+	/**
+	 * Clear bits in an existing entry.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param bits the bits to clear.
+	 */
+	public void clearBits(int vpn, int bits) {
+		int[] leaf = directory[vpn >>> leafBits];
+		if (leaf != null)
+			leaf[vpn & leafMask] &= ~bits;
+	}
+
+	/**
+	 * Return the first virtual page at or after <i>vpn</i> with a non-zero
+	 * entry. Skips unallocated leaves without looking at them.
+	 *
+	 * @param vpn the virtual page number to start at.
+	 * @return the virtual page number, or -1 if there is none.
+	 */
+	public int nextEntry(int vpn) {
+		for (int dir = vpn >>> leafBits; dir < directory.length; dir++) {
+			int[] leaf = directory[dir];
+			if (leaf != null) {
+				int start = (dir == vpn >>> leafBits) ? (vpn & leafMask) : 0;
+				for (int i = start; i < leafSize; i++) {
+					if (leaf[i] != 0)
+						return (dir << leafBits) | i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of leaves allocated so far.
+	 *
+	 * @return the number of leaves.
+	 */
+	public int getNumLeaves() {
+		return numLeaves;
+	}
+
+	/** Mask of the physical page number in an entry. */
+	public static final int ppnMask = 0x00FFFFFF;
+
+	/** Set if the entry maps a physical page. */
+	public static final int validBit = 1 << 24;
+
+	/** Set if the page may not be written. */
+	public static final int readOnlyBit = 1 << 25;
+
+	/** Set by the processor whenever the page is accessed. */
+	public static final int usedBit = 1 << 26;
+
+	/** Set by the processor whenever the page is written. */
+	public static final int dirtyBit = 1 << 27;
+
+	/**
+	 * Set if the page lies in an aligned superpage of consecutive physical
+	 * pages, which the TLB walker may map with a single entry.
+	 *
+	 * @see nachos.machine.Processor#setWalkTable(PackedPageTable)
+	 */
+	public static final int superPageBit = 1 << 28;
+
+	/** The number of virtual page number bits that index a leaf. */
+	public static final int leafBits = 10;
+
+	private static final int leafSize = 1 << leafBits;
+
+	private static final int leafMask = leafSize - 1;
+
+	private int[][] directory;
+
+	private int numLeaves = 0;
+}
@@ -46,6 +46,21 @@ public final class Processor {
 		mainMemory = new byte[pageSize * numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			// an instruction can touch two pages, which may share a set
+			Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0,
+					"TLB size must be a multiple of its associativity, which must be at least 2");
+			numTLBSets = tlbSize / tlbWays;
+
+			superPageSize = Config.getInteger("Processor.superPageSize", 1);
+			Lib.assertTrue(superPageSize > 0
+					&& (superPageSize & (superPageSize - 1)) == 0,
+					"superpage size must be a power of two");
+
+			hardwareWalk = Config.getBoolean("Processor.hardwareWalk", false);
+			walkHands = new int[numTLBSets];
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -173,6 +188,35 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		this.packedPageTable = null;
+	}
+
+	/**
+	 * Get the current packed page table, set by the last call to
+	 * <tt>setPageTable(PackedPageTable)</tt>.
+	 * 
+	 * @return the current packed page table, or <tt>null</tt> if an array of
+	 * translation entries is in use.
+	 */
+	public PackedPageTable getPackedPageTable() {
+		Lib.assertTrue(!usingTLB);
+
+		return packedPageTable;
+	}
+
+	/**
+	 * Set the page table pointer to a packed page table. All further address
+	 * translations will use the specified page table, which covers the whole
+	 * address space. The processor sets the used and dirty bits of its
+	 * entries.
+	 * 
+	 * @param pageTable the page table to use.
+	 */
+	public void setPageTable(PackedPageTable pageTable) {
+		Lib.assertTrue(!usingTLB);
+
+		this.packedPageTable = pageTable;
+		this.translations = null;
 	}
 
 	/**
@@ -186,6 +230,148 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided
+	 * into sets of this many entries; a page can only be mapped by an entry of
+	 * the set selected by <tt>getTLBSet()</tt>. A TLB with a single set is
+	 * fully associative.
+	 * 
+	 * @return the number of entries in each set.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the set of TLB entries that may map a virtual page. Set <i>s</i>
+	 * holds entries <tt>s*getTLBWays()</tt> through
+	 * <tt>(s+1)*getTLBWays()-1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set number.
+	 */
+	public int getTLBSet(int vpn) {
+		return getTLBSet(vpn, 1);
+	}
+
+	/**
+	 * Return the set of TLB entries that may hold an entry mapping
+	 * <i>pages</i> pages from <i>vpn</i>. Superpages are spread over the sets
+	 * by their superpage number, so that aligned superpages do not all land
+	 * in one set.
+	 * 
+	 * @param vpn the first virtual page number of the entry.
+	 * @param pages the number of pages the entry maps.
+	 * @return the set number.
+	 */
+	public int getTLBSet(int vpn, int pages) {
+		Lib.assertTrue(usingTLB);
+
+		return ((vpn & 0x7FFFFFFF) / pages) % numTLBSets;
+	}
+
+	/**
+	 * Return the number of pages in a superpage TLB entry. The TLB looks up
+	 * entries of one page and entries of this many pages. A size of one
+	 * means the TLB does not support superpages.
+	 * 
+	 * @return the superpage size, in pages.
+	 */
+	public int getSuperPageSize() {
+		Lib.assertTrue(usingTLB);
+
+		return superPageSize;
+	}
+
+	/**
+	 * Return the number of address translations the TLB has satisfied so far.
+	 * The kernel can read this counter to attribute hits to processes.
+	 * 
+	 * @return the number of TLB hits.
+	 */
+	public long getNumTLBHits() {
+		Lib.assertTrue(usingTLB);
+
+		return privilege.stats.numTLBHits;
+	}
+
+	/**
+	 * Return the number of address space identifiers the TLB can tell apart.
+	 * 
+	 * @return the number of ASIDs.
+	 */
+	public int getNumASIDs() {
+		Lib.assertTrue(usingTLB);
+
+		return numASIDs;
+	}
+
+	/**
+	 * Return the current address space identifier.
+	 * 
+	 * @return the current ASID.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Set the current address space identifier. From now on, only TLB
+	 * entries whose <tt>asid</tt> matches it are used to translate addresses,
+	 * so entries of other address spaces can stay in the TLB.
+	 * 
+	 * @param asid the new ASID.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		this.asid = asid;
+	}
+
+	/**
+	 * Test whether this processor refills its TLB by walking a page table.
+	 * With a walker, a TLB miss looks the page up in the table set by
+	 * <tt>setWalkTable()</tt>, and only a miss on an invalid entry raises
+	 * <tt>exceptionTLBMiss</tt>.
+	 * 
+	 * @return <tt>true</tt> if this processor has a hardware page-table
+	 * walker.
+	 */
+	public boolean hasTLBWalker() {
+		Lib.assertTrue(usingTLB);
+
+		return hardwareWalk;
+	}
+
+	/**
+	 * Set the page table the walker refills the TLB from. The entries it
+	 * loads are tagged with the current ASID, so the table must be set again
+	 * whenever the ASID changes.
+	 * 
+	 * <p>
+	 * A walk takes <tt>Stats.TLBWalkTicks</tt>. It loads the entry into an
+	 * invalid entry of its set if there is one, and otherwise replaces the
+	 * entries of the set in turn. The walker sets the <tt>used</tt> bit of
+	 * each table entry it loads, and the <tt>dirty</tt> bit of a page the
+	 * first time it is written through a TLB entry whose dirty bit is clear,
+	 * so the bits of pages whose TLB entries the walker replaced are found in
+	 * the table. A table entry with <tt>superPageBit</tt> set is loaded as a
+	 * superpage entry covering the aligned superpage around it.
+	 * 
+	 * @param table the page table of the current address space, or
+	 * <tt>null</tt> to make every miss raise an exception.
+	 */
+	public void setWalkTable(PackedPageTable table) {
+		Lib.assertTrue(usingTLB && hardwareWalk);
+
+		this.walkTable = table;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -199,12 +385,27 @@ public final class Processor {
 		return new TranslationEntry(translations[number]);
 	}
 
+	/**
+	 * Copy the specified TLB entry into an entry owned by the caller, without
+	 * allocating a new one.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param entry receives the contents of the TLB entry.
+	 */
+	public void readTLBEntry(int number, TranslationEntry entry) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		entry.set(translations[number]);
+	}
+
 	/**
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be written to the set that maps its virtual page.
+	 * Overwriting a valid entry with another valid one counts as a TLB
+	 * eviction.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -212,8 +413,21 @@ public final class Processor {
 	public void writeTLBEntry(int number, TranslationEntry entry) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
-
-		translations[number] = new TranslationEntry(entry);
+		Lib.assertTrue(!entry.valid || entry.pages == 1
+				|| entry.pages == superPageSize
+				&& (entry.vpn & (superPageSize - 1)) == 0
+				&& (entry.ppn & (superPageSize - 1)) == 0,
+				"bad superpage TLB entry");
+		Lib.assertTrue(!entry.valid
+				|| number / tlbWays == getTLBSet(entry.vpn, entry.pages),
+				"TLB entry written outside its set");
+
+		TranslationEntry old = translations[number];
+		if (old.valid && entry.valid
+				&& (old.vpn != entry.vpn || old.asid != entry.asid))
+			privilege.stats.numTLBEvictions++;
+
+		old.set(entry);
 	}
 
 	/**
@@ -306,6 +520,10 @@ public final class Processor {
 
 		TranslationEntry entry = null;
 
+		// a packed page table is walked without building an entry object
+		if (!usingTLB && packedPageTable != null)
+			return translatePacked(vaddr, vpn, offset, writing);
+
 		// if not using a TLB, then the vpn is an index into the table
 		if (!usingTLB) {
 			if (translations == null || vpn >= translations.length
@@ -317,18 +535,22 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the set for an entry matching asid and vpn,
+		// then through the set that would hold a superpage covering vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			entry = lookupTLB(vpn, 1);
+			if (entry == null && superPageSize > 1)
+				entry = lookupTLB(vpn & ~(superPageSize - 1), superPageSize);
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				entry = walk(vpn);
+				if (entry == null) {
+					Lib.debug(dbgProcessor, "\t\tTLB miss");
+					throw new MipsException(exceptionTLBMiss, vaddr);
+				}
+			}
+			else {
+				privilege.stats.numTLBHits++;
 			}
 		}
 
@@ -338,17 +560,134 @@ public final class Processor {
 			throw new MipsException(exceptionReadOnly, vaddr);
 		}
 
-		// check if physical page number is out of range
+		// check if physical page number is out of range; a superpage entry
+		// maps vpn to the page at the same distance from its first page
 		int ppn = entry.ppn;
+		if (entry.pages > 1)
+			ppn += vpn - entry.vpn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
 			throw new MipsException(exceptionBusError, vaddr);
 		}
 
-		// set used and dirty bits as appropriate
+		// set used and dirty bits as appropriate; the walker also records
+		// the first write through an entry in its page table, and every
+		// write through a superpage entry, which covers several table entries
 		entry.used = true;
-		if (writing)
+		if (writing) {
+			if (walkTable != null && (!entry.dirty || entry.pages > 1))
+				walkSetBits(vpn, ppn, PackedPageTable.dirtyBit);
 			entry.dirty = true;
+		}
+
+		int paddr = (ppn * pageSize) + offset;
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	private TranslationEntry lookupTLB(int vpn, int pages) {
+		int first = getTLBSet(vpn, pages) * tlbWays;
+		for (int i = first; i < first + tlbWays; i++) {
+			TranslationEntry entry = translations[i];
+			if (entry.valid && entry.vpn == vpn && entry.pages == pages
+					&& entry.asid == asid)
+				return entry;
+		}
+		return null;
+	}
+
+	private TranslationEntry walk(int vpn) {
+		if (walkTable == null)
+			return null;
+
+		privilege.stats.numTLBWalks++;
+		privilege.stats.userTicks += Stats.TLBWalkTicks;
+		privilege.stats.totalTicks += Stats.TLBWalkTicks;
+
+		int pte = walkTable.get(vpn);
+		if ((pte & PackedPageTable.validBit) == 0) {
+			Lib.debug(dbgProcessor, "\t\tpage table walk found no page");
+			return null;
+		}
+		if ((pte & PackedPageTable.usedBit) == 0)
+			walkTable.setBits(vpn, PackedPageTable.usedBit);
+
+		TranslationEntry entry = new TranslationEntry(vpn,
+				PackedPageTable.ppn(pte), true,
+				(pte & PackedPageTable.readOnlyBit) != 0, false, false);
+		if ((pte & PackedPageTable.superPageBit) != 0 && superPageSize > 1) {
+			int base = vpn & ~(superPageSize - 1);
+			entry.ppn -= vpn - base;
+			entry.vpn = base;
+			entry.pages = superPageSize;
+		}
+		entry.asid = asid;
+
+		int set = getTLBSet(entry.vpn, entry.pages);
+		int first = set * tlbWays;
+		int index = -1;
+		for (int i = first; i < first + tlbWays; i++) {
+			if (!translations[i].valid) {
+				index = i;
+				break;
+			}
+		}
+		if (index == -1) {
+			index = first + walkHands[set];
+			walkHands[set] = (walkHands[set] + 1) % tlbWays;
+
+			// keep the used bits of a replaced entry of this address space;
+			// its dirty bits are already in the table
+			TranslationEntry old = translations[index];
+			if (old.asid == asid && old.used) {
+				for (int i = 0; i < old.pages; i++)
+					walkSetBits(old.vpn + i, old.ppn + i, PackedPageTable.usedBit);
+			}
+			privilege.stats.numTLBEvictions++;
+		}
+		translations[index] = entry;
+
+		Lib.debug(dbgProcessor, "\t\tpage table walk loaded ppn " + entry.ppn);
+		return entry;
+	}
+
+	/** Set bits in the walked table entry of a page, if it maps ppn. */
+	private void walkSetBits(int vpn, int ppn, int bits) {
+		int pte = walkTable.get(vpn);
+		if ((pte & PackedPageTable.validBit) != 0
+				&& PackedPageTable.ppn(pte) == ppn && (pte & bits) != bits)
+			walkTable.setBits(vpn, bits);
+	}
+
+	private int translatePacked(int vaddr, int vpn, int offset, boolean writing)
+			throws MipsException {
+		int pte = packedPageTable.get(vpn);
+		if ((pte & PackedPageTable.validBit) == 0) {
+			privilege.stats.numPageFaults++;
+			Lib.debug(dbgProcessor, "\t\tpage fault");
+			throw new MipsException(exceptionPageFault, vaddr);
+		}
+
+		// check if trying to write a read-only page
+		if ((pte & PackedPageTable.readOnlyBit) != 0 && writing) {
+			Lib.debug(dbgProcessor, "\t\tread-only exception");
+			throw new MipsException(exceptionReadOnly, vaddr);
+		}
+
+		// check if physical page number is out of range
+		int ppn = PackedPageTable.ppn(pte);
+		if (ppn >= numPhysPages) {
+			Lib.debug(dbgProcessor, "\t\tbad ppn");
+			throw new MipsException(exceptionBusError, vaddr);
+		}
+
+		// set used and dirty bits as appropriate
+		int bits = PackedPageTable.usedBit
+				| (writing ? PackedPageTable.dirtyBit : 0);
+		if ((pte & bits) != bits)
+			packedPageTable.setBits(vpn, bits);
 
 		int paddr = (ppn * pageSize) + offset;
 
@@ -550,12 +889,38 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** The number of entries in each TLB set. */
+	private int tlbWays = 4;
+
+	private int numTLBSets = 1;
+
+	/** The number of pages in a superpage TLB entry. */
+	private int superPageSize = 1;
+
+	/** The number of address spaces the TLB can tell apart. */
+	private static final int numASIDs = 64;
+
+	/** The address space whose TLB entries are in use. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** The packed page table, if one is in use instead of translations. */
+	private PackedPageTable packedPageTable = null;
+
+	/** Set if TLB misses are refilled by walking <tt>walkTable</tt>. */
+	private boolean hardwareWalk = false;
+
+	/** The page table of the current address space, for the walker. */
+	private PackedPageTable walkTable = null;
+
+	/** The entry of each TLB set the walker replaces next. */
+	private int[] walkHands;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -6,8 +6,8 @@ import nachos.security.*;
 
 /**
  * A serial console can be used to send and receive characters. Only one
- * character may be sent at a time, and only one character may be received at a
- * time.
+ * character, or one buffer of characters, may be sent at a time. Received
+ * characters are delivered in batches.
  */
 
 public interface SerialConsole {
@@ -15,8 +15,9 @@ public interface SerialConsole {
 	 * Set this console's receive and send interrupt handlers.
 	 * 
 	 * <p>
-	 * The receive interrupt handler is called every time another byte arrives
-	 * and can be read using <tt>readByte()</tt>.
+	 * The receive interrupt handler is called every time one or more bytes
+	 * arrive. They can then be read using <tt>readByte()</tt>, which returns
+	 * -1 once all of them have been read.
 	 * 
 	 * <p>
 	 * The send interrupt handler is called every time a byte sent with
@@ -45,4 +46,18 @@ public interface SerialConsole {
 	 * @param value the byte to be sent (the upper 24 bits are ignored).
 	 */
 	public void writeByte(int value);
+
+	/**
+	 * Send a run of bytes as a single transfer. The console copies as many
+	 * bytes as fit in its transmit buffer and calls the send interrupt handler
+	 * once, when all of them have been sent. If a transfer is already in
+	 * progress, the result is not defined.
+	 * 
+	 * @param buf the buffer containing the bytes to send.
+	 * @param offset the offset in the buffer of the first byte to send.
+	 * @param length the number of bytes to send.
+	 * @return the number of bytes accepted, at least one if <i>length</i> is
+	 * positive.
+	 */
+	public int writeBytes(byte[] buf, int offset, int length);
 }
@@ -0,0 +1,225 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sector-addressed disk. The disk has <tt>SimulatedDisk.numTracks</tt>
+ * tracks of <tt>sectorsPerTrack</tt> sectors, each <tt>sectorSize</tt> bytes,
+ * numbered track by track. It is backed by a host file that is mapped into
+ * memory and kept when Nachos exits, so whatever is written to the disk is
+ * still there the next time Nachos starts.
+ *
+ * <p>
+ * Requests are asynchronous and cover a run of consecutive sectors. The disk
+ * serves one request at a time; when a request completes, the disk calls the
+ * interrupt handler set by <tt>setInterruptHandler()</tt>, and only then may
+ * the next request be issued. Ordering waiting requests is up to the kernel.
+ * The data of a write is taken when the request is issued, and the data of a
+ * read is delivered when it completes.
+ *
+ * <p>
+ * The time a request takes depends on where the head is. Moving the head
+ * <i>d</i> tracks takes a settling time of <tt>Stats.SeekTime/10</tt> plus
+ * the rest of <tt>Stats.SeekTime</tt> in proportion to <i>d</i>, so a seek
+ * across the whole disk takes <tt>Stats.SeekTime</tt>. The platter turns once
+ * every <tt>Stats.RotationTime</tt> ticks whether or not the disk is busy, so
+ * once on the right track the head waits for the first sector to come round,
+ * and then transfers one sector per <tt>sectorsPerTrack</tt>th of a
+ * rotation. A run that crosses into the next track seeks one track.
+ */
+public final class SimulatedDisk {
+	/**
+	 * Allocate a new disk, backed by a file in the given directory. The file
+	 * is created if it does not exist.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory holding the backing file.
+	 */
+	public SimulatedDisk(Privilege privilege, File directory) {
+		System.out.print(" disk");
+
+		this.privilege = privilege;
+		numTracks = Config.getInteger("SimulatedDisk.numTracks", 64);
+		Lib.assertTrue(numTracks > 0);
+		numSectors = numTracks * sectorsPerTrack;
+
+		final File f = new File(directory, Config.getString("SimulatedDisk.file",
+				"DISK"));
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				map(f);
+			}
+		});
+		Lib.assertTrue(buffer != null, "unable to map the disk");
+
+		completionInterrupt = new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		};
+	}
+
+	private void map(File f) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			file.setLength((long) numSectors * sectorSize);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) numSectors * sectorSize);
+			file.close();
+		}
+		catch (IOException e) {
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Set the handler called when a request completes.
+	 *
+	 * @param handler the interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Return the number of sectors on the disk.
+	 *
+	 * @return the size of the disk, in sectors.
+	 */
+	public int getNumSectors() {
+		return numSectors;
+	}
+
+	/**
+	 * Return the number of tracks on the disk.
+	 *
+	 * @return the number of tracks.
+	 */
+	public int getNumTracks() {
+		return numTracks;
+	}
+
+	/**
+	 * Return the track holding a sector.
+	 *
+	 * @param sector the sector number.
+	 * @return the track number.
+	 */
+	public static int trackOf(int sector) {
+		return sector / sectorsPerTrack;
+	}
+
+	/**
+	 * Start reading consecutive sectors into a buffer. The buffer is filled
+	 * when the request completes.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void readSectors(int sector, int count, byte[] data, int offset) {
+		start(sector, count, data, offset);
+		reading = true;
+		privilege.stats.numDiskReads += count;
+	}
+
+	/**
+	 * Start writing consecutive sectors from a buffer. The buffer may be
+	 * reused as soon as this method returns.
+	 *
+	 * @param sector the first sector.
+	 * @param count the number of sectors.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void writeSectors(int sector, int count, byte[] data, int offset) {
+		start(sector, count, data, offset);
+		reading = false;
+		buffer.position(sector * sectorSize);
+		buffer.put(data, offset, count * sectorSize);
+		privilege.stats.numDiskWrites += count;
+	}
+
+	private void start(int sector, int count, byte[] data, int offset) {
+		Lib.assertTrue(!busy, "disk is busy");
+		Lib.assertTrue(sector >= 0 && count > 0 && sector + count <= numSectors);
+		Lib.assertTrue(offset >= 0 && offset + count * sectorSize <= data.length);
+
+		long now = privilege.stats.totalTicks;
+		long time = now;
+		for (int s = sector; s < sector + count; s++) {
+			time += seekTime(Math.abs(trackOf(s) - headTrack));
+			headTrack = trackOf(s);
+
+			// wait for the sector to come round, then let it pass the head
+			int angle = (int) (time % Stats.RotationTime);
+			int begin = sectorStart(s % sectorsPerTrack);
+			time += (begin - angle + Stats.RotationTime) % Stats.RotationTime;
+			time += sectorStart(s % sectorsPerTrack + 1) - begin;
+		}
+
+		busy = true;
+		requestSector = sector;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+		privilege.interrupt.schedule(Math.max(1, time - now), "disk",
+				completionInterrupt);
+	}
+
+	private int seekTime(int tracks) {
+		if (tracks == 0)
+			return 0;
+		int settle = Stats.SeekTime / 10;
+		return settle + (Stats.SeekTime - settle) * tracks / Math.max(1, numTracks - 1);
+	}
+
+	/** The time into a rotation at which a sector starts to pass the head. */
+	private static int sectorStart(int index) {
+		return index * Stats.RotationTime / sectorsPerTrack;
+	}
+
+	private void completionInterrupt() {
+		if (reading) {
+			buffer.position(requestSector * sectorSize);
+			buffer.get(requestData, requestOffset, requestCount * sectorSize);
+		}
+		busy = false;
+		requestData = null;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	/** The number of bytes in a sector. */
+	public static final int sectorSize = 128;
+
+	/** The number of sectors on a track. */
+	public static final int sectorsPerTrack = 32;
+
+	private Privilege privilege;
+
+	private int numTracks, numSectors;
+
+	private MappedByteBuffer buffer;
+
+	private Runnable handler = null, completionInterrupt;
+
+	/** The track under the head once the last request completes. */
+	private int headTrack = 0;
+
+	private boolean busy = false, reading;
+
+	private int requestSector, requestCount, requestOffset;
+
+	private byte[] requestData;
+}
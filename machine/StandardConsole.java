@@ -4,6 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 
 /**
@@ -20,6 +21,10 @@ public class StandardConsole implements SerialConsole {
 
 		this.privilege = privilege;
 
+		transmitBuffer = new byte[Math.max(1, Config.getInteger(
+				"StandardConsole.transmitBufferSize", 512))];
+		output = new BufferedOutputStream(System.out, transmitBuffer.length);
+
 		receiveInterrupt = new Runnable() {
 			public void run() {
 				receiveInterrupt();
@@ -32,6 +37,7 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		startHostReader();
 		scheduleReceiveInterrupt();
 	}
 
@@ -42,24 +48,70 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
+		privilege.interrupt.schedule(receiveDelay, "console read",
 				receiveInterrupt);
 	}
 
+	/**
+	 * Start a host thread that blocks reading <tt>System.in</tt> and queues
+	 * whatever arrives, so the receive interrupt never touches the host
+	 * stream itself.
+	 */
+	private void startHostReader() {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				Thread reader = new Thread(new Runnable() {
+					public void run() {
+						readHostInput();
+					}
+				}, "console reader");
+				reader.setDaemon(true);
+				reader.start();
+			}
+		});
+	}
+
+	private void readHostInput() {
+		byte[] buf = new byte[hostBufferSize];
+		while (true) {
+			int amount;
+			try {
+				amount = System.in.read(buf);
+			}
+			catch (IOException e) {
+				amount = -1;
+			}
+			if (amount == -1)
+				return;
+
+			synchronized (hostInput) {
+				for (int i = 0; i < amount; i++) {
+					// wait for the receive interrupt to make room
+					while (hostTail - hostHead == hostInput.length) {
+						try {
+							hostInput.wait();
+						}
+						catch (InterruptedException e) {
+						}
+					}
+					hostInput[hostTail++ & (hostInput.length - 1)] = buf[i];
+				}
+			}
+		}
+	}
+
 	/**
 	 * Attempt to read a byte from the object backing this console.
 	 * 
 	 * @return the byte read, or -1 of no data is available.
 	 */
 	protected int in() {
-		try {
-			if (System.in.available() <= 0)
+		synchronized (hostInput) {
+			if (hostHead == hostTail)
 				return -1;
-
-			return System.in.read();
-		}
-		catch (IOException e) {
-			return -1;
+			int value = hostInput[hostHead++ & (hostInput.length - 1)] & 0xFF;
+			hostInput.notify();
+			return value;
 		}
 	}
 
@@ -88,15 +140,32 @@ public class StandardConsole implements SerialConsole {
 			return -1;
 	}
 
+	/**
+	 * Move what the host has typed, up to a full receive buffer, into the
+	 * receive buffer and raise a single interrupt for all of it. While
+	 * nothing arrives, the interval between checks doubles, up to
+	 * <tt>maxReceiveDelay</tt>.
+	 */
 	private void receiveInterrupt() {
-		Lib.assertTrue(incomingKey == -1);
+		Lib.assertTrue(incomingHead == incomingTail);
+
+		incomingHead = incomingTail = 0;
+		while (incomingTail < incomingKeys.length) {
+			int c = in();
+			if (c == -1)
+				break;
+			int key = translateCharacter(c);
+			if (key != -1)
+				incomingKeys[incomingTail++] = (byte) key;
+		}
 
-		incomingKey = translateCharacter(in());
-		if (incomingKey == -1) {
+		if (incomingTail == 0) {
+			receiveDelay = Math.min(receiveDelay * 2, maxReceiveDelay);
 			scheduleReceiveInterrupt();
 		}
 		else {
-			privilege.stats.numConsoleReads++;
+			receiveDelay = Stats.ConsoleTime;
+			privilege.stats.numConsoleReads += incomingTail;
 
 			if (receiveInterruptHandler != null)
 				receiveInterruptHandler.run();
@@ -104,12 +173,12 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	public final int readByte() {
-		int key = incomingKey;
+		if (incomingHead == incomingTail)
+			return -1;
 
-		if (incomingKey != -1) {
-			incomingKey = -1;
+		int key = incomingKeys[incomingHead++];
+		if (incomingHead == incomingTail)
 			scheduleReceiveInterrupt();
-		}
 
 		return key;
 	}
@@ -125,17 +194,39 @@ public class StandardConsole implements SerialConsole {
 	 * @param value the byte to write.
 	 */
 	protected void out(int value) {
-		System.out.write(value);
-		System.out.flush();
+		out(new byte[] { (byte) value }, 0, 1);
 	}
 
-	private void sendInterrupt() {
-		Lib.assertTrue(outgoingKey != -1);
+	/**
+	 * Write a run of bytes to the object backing this console. The bytes
+	 * reach the host in a single write.
+	 * 
+	 * @param buf the buffer containing the bytes to write.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the number of bytes to write.
+	 */
+	protected void out(byte[] buf, int offset, int length) {
+		try {
+			output.write(buf, offset, length);
+			output.flush();
+		}
+		catch (IOException e) {
+		}
+	}
 
-		out(outgoingKey);
-		outgoingKey = -1;
+	private void sendInterrupt() {
+		Lib.assertTrue(outgoingKey != -1 || outgoingLength > 0);
 
-		privilege.stats.numConsoleWrites++;
+		if (outgoingLength > 0) {
+			out(transmitBuffer, 0, outgoingLength);
+			privilege.stats.numConsoleWrites += outgoingLength;
+			outgoingLength = 0;
+		}
+		else {
+			out(outgoingKey);
+			outgoingKey = -1;
+			privilege.stats.numConsoleWrites++;
+		}
 
 		if (sendInterruptHandler != null)
 			sendInterruptHandler.run();
@@ -148,6 +239,22 @@ public class StandardConsole implements SerialConsole {
 		outgoingKey = value & 0xFF;
 	}
 
+	public final int writeBytes(byte[] buf, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= buf.length);
+		Lib.assertTrue(outgoingKey == -1 && outgoingLength == 0);
+
+		if (length == 0)
+			return 0;
+
+		// the whole buffer goes out with one interrupt
+		outgoingLength = Math.min(length, transmitBuffer.length);
+		System.arraycopy(buf, offset, transmitBuffer, 0, outgoingLength);
+		scheduleSendInterrupt();
+
+		return outgoingLength;
+	}
+
 	private Privilege privilege = null;
 
 	private Runnable receiveInterrupt;
@@ -158,9 +265,38 @@ public class StandardConsole implements SerialConsole {
 
 	private Runnable sendInterruptHandler = null;
 
-	private int incomingKey = -1;
+	/**
+	 * Translated bytes delivered by the last receive interrupt, from
+	 * <tt>incomingHead</tt> up to <tt>incomingTail</tt>.
+	 */
+	private byte[] incomingKeys = new byte[hostBufferSize];
+
+	private int incomingHead = 0, incomingTail = 0;
+
+	/**
+	 * A ring of bytes queued by the host reader thread. The indices only
+	 * grow; the reader waits while the ring is full.
+	 */
+	private byte[] hostInput = new byte[hostInputSize];
+
+	private int hostHead = 0, hostTail = 0;
+
+	private int receiveDelay = Stats.ConsoleTime;
+
+	private static final int maxReceiveDelay = Stats.ConsoleTime * 32;
+
+	private static final int hostBufferSize = 256;
+
+	/** The size of the host input ring, a power of two. */
+	private static final int hostInputSize = 4096;
 
 	private int outgoingKey = -1;
 
+	private byte[] transmitBuffer;
+
+	private int outgoingLength = 0;
+
+	private BufferedOutputStream output;
+
 	private boolean prevCarriageReturn = false;
 }
@@ -22,10 +22,18 @@ public final class Stats {
 				+ kernelTicks + ", user " + userTicks);
 		System.out.println("Disk I/O: reads " + numDiskReads + ", writes "
 				+ numDiskWrites);
+		if (numSwapReads > 0 || numSwapWrites > 0)
+			System.out.println("Swap I/O: reads " + numSwapReads + ", writes "
+					+ numSwapWrites);
 		System.out.println("Console I/O: reads " + numConsoleReads
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBHits > 0 || numTLBMisses > 0)
+			System.out.println("TLB: hits " + numTLBHits + ", misses "
+					+ numTLBMisses + (numTLBWalks > 0 ? ", walks " + numTLBWalks : "")
+					+ ", evictions " + numTLBEvictions + ", hit rate " + (numTLBHits * 1000
+					/ (numTLBHits + numTLBMisses)) / 10.0 + "%");
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -51,6 +59,12 @@ public final class Stats {
 	/** The total number of sectors Nachos has written to the simulated disk. */
 	public int numDiskWrites = 0;
 
+	/** The total number of pages Nachos has read from the swap device. */
+	public int numSwapReads = 0;
+
+	/** The total number of pages Nachos has written to the swap device. */
+	public int numSwapWrites = 0;
+
 	/** The total number of characters Nachos has read from the console. */
 	public int numConsoleReads = 0;
 
@@ -63,6 +77,15 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of translations the TLB has satisfied. */
+	public long numTLBHits = 0;
+
+	/** The total number of TLB misses the processor walked a page table for. */
+	public int numTLBWalks = 0;
+
+	/** The total number of valid TLB entries replaced by other ones. */
+	public int numTLBEvictions = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
@@ -80,6 +103,12 @@ public final class Stats {
 	 */
 	public static final int KernelTick = 10;
 
+	/**
+	 * The amount of simulated time the processor spends walking the page
+	 * table on a TLB miss.
+	 */
+	public static final int TLBWalkTicks = 2;
+
 	/**
 	 * The amount of simulated time required to rotate the disk 360 degrees.
 	 */
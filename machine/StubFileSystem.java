@@ -50,6 +50,13 @@ public class StubFileSystem implements FileSystem {
 		return fr.successful;
 	}
 
+	/**
+	 * Writes go straight to the host files, so there is nothing to write.
+	 */
+	public boolean sync() {
+		return true;
+	}
+
 	private class FileRemover implements Runnable {
 		public FileRemover(File f) {
 			this.f = f;
@@ -77,6 +84,7 @@ public class StubFileSystem implements FileSystem {
 			super(StubFileSystem.this, name);
 
 			final File f = new File(directory, name);
+			hostFile = f;
 
 			if (openCount == maxOpenFiles)
 				throw new IOException();
@@ -148,6 +156,16 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		public long lastModified() {
+			final long[] time = new long[1];
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					time[0] = hostFile.lastModified();
+				}
+			});
+			return time[0] == 0 ? -1 : time[0];
+		}
+
 		public void close() {
 			if (open) {
 				open = false;
@@ -161,6 +179,8 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		private File hostFile;
+
 		private RandomAccessFile file = null;
 
 		private boolean open = false;
@@ -0,0 +1,187 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A block device for paging, separate from the file system user programs
+ * see. The device holds <tt>SwapDevice.numPages</tt> pages of
+ * <tt>Processor.pageSize</tt> bytes, backed by a host file that is mapped
+ * into memory, so a transfer costs the host no more than a copy.
+ *
+ * <p>
+ * Requests are asynchronous and cover a run of consecutive pages. The device
+ * serves one request at a time; when a request completes, the device calls
+ * the interrupt handler set by <tt>setInterruptHandler()</tt>, and only then
+ * may the next request be issued. The data of a write is taken when the
+ * request is issued, and the data of a read is delivered when it completes.
+ *
+ * <p>
+ * A request that starts where the previous one ended costs only the time to
+ * transfer its pages, <tt>Stats.RotationTime</tt> divided by
+ * <tt>pagesPerTrack</tt> per page. Any other request first seeks, taking
+ * <tt>Stats.SeekTime</tt> plus half a rotation.
+ */
+public final class SwapDevice {
+	/**
+	 * Allocate a new swap device, backed by a new host file in the given
+	 * directory that is removed when Nachos exits.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the directory in which to create the backing file.
+	 */
+	public SwapDevice(Privilege privilege, File directory) {
+		System.out.print(" swap");
+
+		this.privilege = privilege;
+		numPages = Config.getInteger("SwapDevice.numPages", 4096);
+		Lib.assertTrue(numPages > 0);
+
+		final File f = new File(directory, Config.getString("SwapDevice.file",
+				"SWAPDEV"));
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				map(f);
+			}
+		});
+		Lib.assertTrue(buffer != null, "unable to map the swap device");
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				SwapDevice.this.privilege.doPrivileged(new Runnable() {
+					public void run() {
+						f.delete();
+					}
+				});
+			}
+		});
+
+		completionInterrupt = new Runnable() {
+			public void run() {
+				completionInterrupt();
+			}
+		};
+	}
+
+	private void map(File f) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			file.setLength((long) numPages * pageSize);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					(long) numPages * pageSize);
+			file.close();
+		}
+		catch (IOException e) {
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Set the handler called when a request completes.
+	 *
+	 * @param handler the interrupt handler.
+	 */
+	public void setInterruptHandler(Runnable handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Return the number of pages on the device.
+	 *
+	 * @return the size of the device, in pages.
+	 */
+	public int getNumPages() {
+		return numPages;
+	}
+
+	/**
+	 * Start reading consecutive pages into a buffer. The buffer is filled
+	 * when the request completes.
+	 *
+	 * @param spn the first page on the device.
+	 * @param count the number of pages.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void readPages(int spn, int count, byte[] data, int offset) {
+		start(spn, count, data, offset);
+		reading = true;
+		privilege.stats.numSwapReads += count;
+	}
+
+	/**
+	 * Start writing consecutive pages from a buffer. The buffer may be reused
+	 * as soon as this method returns.
+	 *
+	 * @param spn the first page on the device.
+	 * @param count the number of pages.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void writePages(int spn, int count, byte[] data, int offset) {
+		start(spn, count, data, offset);
+		reading = false;
+		buffer.position(spn * pageSize);
+		buffer.put(data, offset, count * pageSize);
+		privilege.stats.numSwapWrites += count;
+	}
+
+	private void start(int spn, int count, byte[] data, int offset) {
+		Lib.assertTrue(!busy, "swap device is busy");
+		Lib.assertTrue(spn >= 0 && count > 0 && spn + count <= numPages);
+		Lib.assertTrue(offset >= 0 && offset + count * pageSize <= data.length);
+
+		int latency = count * (Stats.RotationTime / pagesPerTrack);
+		if (spn != headPage)
+			latency += Stats.SeekTime + Stats.RotationTime / 2;
+		headPage = spn + count;
+
+		busy = true;
+		requestPage = spn;
+		requestCount = count;
+		requestData = data;
+		requestOffset = offset;
+		privilege.interrupt.schedule(latency, "swap", completionInterrupt);
+	}
+
+	private void completionInterrupt() {
+		if (reading) {
+			buffer.position(requestPage * pageSize);
+			buffer.get(requestData, requestOffset, requestCount * pageSize);
+		}
+		busy = false;
+		requestData = null;
+
+		if (handler != null)
+			handler.run();
+	}
+
+	/** The number of pages that pass under the head in one rotation. */
+	public static final int pagesPerTrack = 8;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private Privilege privilege;
+
+	private int numPages;
+
+	private MappedByteBuffer buffer;
+
+	private Runnable handler = null, completionInterrupt;
+
+	/** The page under the head once the last request completes. */
+	private int headPage = -1;
+
+	private boolean busy = false, reading;
+
+	private int requestPage, requestCount, requestOffset;
+
+	private byte[] requestData;
+}
@@ -42,12 +42,23 @@ public final class TranslationEntry {
 	 * @param entry the translation entry to copy.
 	 */
 	public TranslationEntry(TranslationEntry entry) {
+		set(entry);
+	}
+
+	/**
+	 * Copy the contents of another translation entry into this one.
+	 * 
+	 * @param entry the translation entry to copy.
+	 */
+	public void set(TranslationEntry entry) {
 		vpn = entry.vpn;
 		ppn = entry.ppn;
 		valid = entry.valid;
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
+		pages = entry.pages;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +89,22 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space this entry belongs to. A TLB entry only matches when
+	 * its <tt>asid</tt> equals the processor's current ASID; page table
+	 * entries ignore it.
+	 *
+	 * @see nachos.machine.Processor#setASID(int)
+	 */
+	public int asid = 0;
+
+	/**
+	 * The number of pages this entry maps, a power of two. An entry of more
+	 * than one page is a superpage: it maps the <tt>pages</tt> virtual pages
+	 * starting at <tt>vpn</tt> to as many physical pages starting at
+	 * <tt>ppn</tt>, and both must be multiples of <tt>pages</tt>. Its used
+	 * and dirty bits cover the whole superpage.
+	 */
+	public int pages = 1;
 }
@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(ringsetup, syscallRingSetup)
+	SYSCALLSTUB(ringenter, syscallRingEnter)
+	SYSCALLSTUB(fsync, syscallFsync)
@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallRingSetup	13
+#define syscallRingEnter	14
+#define syscallFsync		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -214,6 +217,16 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/**
+ * Wait until all data written to the file referred to by fileDescriptor has
+ * been flushed to disk. write() may return while the data is still held in
+ * the kernel's buffer cache; after fsync() returns, it survives a halt.
+ *
+ * Returns 0 on success, or -1 if fileDescriptor is invalid or the data could
+ * not be written.
+ */
+int fsync(int fileDescriptor);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
@@ -257,6 +270,66 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* BATCHED SYSCALLS: ringsetup(), ringenter() */
+
+/* Submission opcodes. Each behaves like the syscall of the same name. */
+#define ringOpNop		0
+#define ringOpRead		1
+#define ringOpWrite		2
+#define ringOpOpen		3
+#define ringOpClose		4
+
+/* Flag to ringsetup(): drain the submission ring at context switches. */
+#define ringPoll		1
+
+/* A submission. For ringOpOpen, addr points to the file name. */
+struct sqe {
+    int opcode;
+    int fd;
+    char *addr;
+    int len;
+    int userData;
+};
+
+/* A completion: the userData of the submission and its return value. */
+struct cqe {
+    int userData;
+    int result;
+};
+
+/* The rings. entries[] has a power-of-two size, passed to ringsetup(). The
+ * process advances sq.tail and cq.head; the kernel advances sq.head and
+ * cq.tail. Indices increase forever and are reduced modulo the ring size.
+ */
+struct sqring {
+    int head;
+    int tail;
+    struct sqe entries[1];
+};
+
+struct cqring {
+    int head;
+    int tail;
+    struct cqe entries[1];
+};
+
+/**
+ * Register a submission ring and a completion ring of the given number of
+ * entries (a power of two, at most 256). If flags includes ringPoll, the
+ * kernel also consumes submissions whenever the process is switched out.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int ringsetup(struct sqring *sq, struct cqring *cq, int entries, int flags);
+
+/**
+ * Consume up to toSubmit pending submissions, posting one completion for
+ * each. Stops early if the completion ring is full.
+ *
+ * Returns the number of submissions consumed, or -1 if an error occurred.
+ */
+int ringenter(int toSubmit);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -15,13 +16,18 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Initialize this kernel. Creates a scheduler, the first thread, and an
-	 * alarm, and enables interrupts. Creates a file system if necessary.
+	 * alarm, and enables interrupts. Creates a file system if necessary, and
+	 * a <tt>SynchDisk</tt> if the machine has a disk.
 	 */
 	public void initialize(String[] args) {
 		// set scheduler
 		String schedulerName = Config.getString("ThreadedKernel.scheduler");
 		scheduler = (Scheduler) Lib.constructObject(schedulerName);
 
+		// set disk
+		if (Machine.disk() != null)
+			disk = new SynchDisk(Machine.disk());
+
 		// set fileSystem
 		String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
 		if (fileSystemName != null)
@@ -53,6 +59,10 @@ public class ThreadedKernel extends Kernel {
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+		if (disk != null && Config.getBoolean("SynchDisk.selfTest", false))
+			SynchDisk.selfTest();
+		if (Config.getBoolean("NachosFileSystem.selfTest", false))
+			NachosFileSystem.selfTest();
 	}
 
 	/**
@@ -66,6 +76,12 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem != null)
+			fileSystem.sync();
+		if (fileSystem != null && fileSystem != Machine.stubFileSystem())
+			System.out.println("File system: " + fileSystem);
+		if (disk != null)
+			System.out.println("Disk: " + disk);
 		Machine.halt();
 	}
 
@@ -78,6 +94,9 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	/** Globally accessible reference to the disk, if the machine has one. */
+	public static SynchDisk disk = null;
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
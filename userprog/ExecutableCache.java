@@ -0,0 +1,207 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of recently executed COFF images. The first exec of a program reads
+ * the whole executable with a single file system read and parses its headers;
+ * later execs of the same program reuse the parsed sections and their contents
+ * without touching the file again. An image is only reused while the length
+ * and modification time of the executable still match. Images are evicted in
+ * least-recently-used order once the cache exceeds its memory budget, which is
+ * set by the <tt>ExecutableCache.maxBytes</tt> key in <tt>nachos.conf</tt>.
+ */
+public class ExecutableCache {
+	/**
+	 * Allocate a new executable cache.
+	 *
+	 * @param maxBytes the number of bytes of executable images to retain.
+	 */
+	public ExecutableCache(int maxBytes) {
+		this.maxBytes = maxBytes;
+		lock = new Lock();
+	}
+
+	/**
+	 * Return the image of the named executable, loading it if it is not
+	 * cached or the cached copy is stale.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @return the executable image, or <tt>null</tt> if the file could not be
+	 * opened or is not a valid executable.
+	 */
+	public Image open(String name) {
+		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+		if (executable == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return null;
+		}
+
+		int length = executable.length();
+		long modified = executable.lastModified();
+
+		lock.acquire();
+
+		Image image = images.get(name);
+		if (image != null && image.length == length
+				&& image.modified == modified) {
+			hits++;
+			lock.release();
+			executable.close();
+			Lib.debug(dbgProcess, "\texecutable cache hit");
+			return image;
+		}
+		if (image != null) {
+			images.remove(name);
+			totalBytes -= image.length;
+		}
+		misses++;
+
+		byte[] contents = new byte[Math.max(length, 0)];
+		boolean readOK = length >= 0
+				&& executable.read(0, contents, 0, length) == length;
+		executable.close();
+
+		image = null;
+		if (readOK) {
+			try {
+				image = new Image(name, contents, modified);
+			}
+			catch (EOFException e) {
+				Lib.debug(dbgProcess, "\tcoff load failed");
+			}
+		}
+
+		if (image != null && length <= maxBytes) {
+			images.put(name, image);
+			totalBytes += length;
+			evict();
+		}
+
+		lock.release();
+		return image;
+	}
+
+	/**
+	 * Drop least recently used images until the cache fits its budget.
+	 */
+	private void evict() {
+		Iterator<Image> i = images.values().iterator();
+		while (totalBytes > maxBytes && i.hasNext()) {
+			Image victim = i.next();
+			totalBytes -= victim.length;
+			i.remove();
+			Lib.debug(dbgProcess, "\tevicted " + victim.name
+					+ " from the executable cache");
+		}
+	}
+
+	/**
+	 * Return the number of execs served without reading the executable.
+	 *
+	 * @return the number of cache hits.
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of execs that had to read the executable.
+	 *
+	 * @return the number of cache misses.
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * A parsed executable together with the contents of its sections.
+	 */
+	public static class Image {
+		private Image(String name, byte[] contents, long modified)
+				throws EOFException {
+			this.name = name;
+			this.length = contents.length;
+			this.modified = modified;
+			this.coff = new SharedCoff(contents);
+		}
+
+		/**
+		 * Return a string that identifies this version of the executable.
+		 *
+		 * @return the identity of this image.
+		 */
+		public String getKey() {
+			return name + ":" + length + ":" + modified;
+		}
+
+		/**
+		 * Return the loader for this image. The loader is shared by every
+		 * process running the image, and closing it has no effect.
+		 *
+		 * @return the COFF loader for this image.
+		 */
+		public Coff getCoff() {
+			return coff;
+		}
+
+		private String name;
+		private int length;
+		private long modified;
+		private Coff coff;
+	}
+
+	/**
+	 * A COFF loader reading an in-memory image. It is shared by every
+	 * process running the image, so closing it has no effect.
+	 */
+	private static class SharedCoff extends Coff {
+		SharedCoff(byte[] contents) throws EOFException {
+			super(new ImageFile(contents));
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * The contents of a cached executable. Every read takes a tick, since
+	 * <tt>Lib.strictReadFile()</tt> insists that reads take simulated time,
+	 * and the contents stay readable after the file is closed.
+	 */
+	private static class ImageFile extends ArrayFile {
+		ImageFile(byte[] contents) {
+			super(contents);
+		}
+
+		public int read(int position, byte[] buf, int offset, int length) {
+			boolean intStatus = Machine.interrupt().disable();
+			int amount = super.read(position, buf, offset, length);
+			Machine.interrupt().restore(intStatus);
+			return amount;
+		}
+
+		public void close() {
+		}
+	}
+
+	private int maxBytes;
+
+	private int totalBytes = 0;
+
+	private int hits = 0, misses = 0;
+
+	/** Images in least-recently-used order. */
+	private LinkedHashMap<String, Image> images = new LinkedHashMap<String, Image>(
+			16, 0.75f, true);
+
+	private Lock lock;
+
+	private static final char dbgProcess = 'a';
+}
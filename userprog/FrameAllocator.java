@@ -0,0 +1,353 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A buddy allocator for physical frames. Free memory is kept as aligned blocks
+ * of <tt>2<sup>k</sup></tt> frames, on one doubly linked free list per order
+ * that is threaded through arrays indexed by frame, and a bitmap of allocated
+ * frames. Allocating or freeing a run splits or merges blocks with their
+ * buddies, so the cost depends on the number of orders rather than the number
+ * of frames.
+ *
+ * <p>
+ * Frames can be reserved ahead of time: a process that needs <i>n</i> frames
+ * reserves them all at once, and later allocations against its
+ * <tt>Reservation</tt> cannot fail. Only the holder of a reservation can
+ * allocate from it, and unreserved allocations never eat into reserved
+ * frames.
+ *
+ * <p>
+ * The free and reserved counts may be read without holding the allocator's
+ * lock.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator with every frame free.
+	 *
+	 * @param numFrames the number of physical frames to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		this.numFrames = numFrames;
+
+		maxOrder = 0;
+		while ((2 << maxOrder) <= numFrames)
+			maxOrder++;
+
+		freeHeads = new int[maxOrder + 1];
+		blockCounts = new int[maxOrder + 1];
+		Arrays.fill(freeHeads, -1);
+		nextFree = new int[numFrames];
+		prevFree = new int[numFrames];
+		freeOrder = new byte[numFrames];
+		Arrays.fill(freeOrder, (byte) -1);
+		allocated = new BitSet(numFrames);
+
+		// cover memory with the largest aligned blocks that fit
+		int frame = 0;
+		while (frame < numFrames) {
+			int order = maxOrder;
+			while ((frame & ((1 << order) - 1)) != 0
+					|| frame + (1 << order) > numFrames)
+				order--;
+			addBlock(frame, order);
+			frame += 1 << order;
+		}
+		numFree = numFrames;
+
+		lock = new Lock();
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return the physical page number, or -1 if no unreserved frame is free.
+	 */
+	public int allocate() {
+		return allocateRun(1);
+	}
+
+	/**
+	 * Allocate a physically contiguous run of frames. The run is aligned to
+	 * the smallest power of two that holds it.
+	 *
+	 * @param frames the number of frames in the run.
+	 * @return the first physical page number of the run, or -1 if no such
+	 * run is free.
+	 */
+	public int allocateRun(int frames) {
+		Lib.assertTrue(frames > 0);
+
+		lock.acquire();
+		int first = -1;
+		if (numFree - numReserved >= frames)
+			first = allocateLocked(frames);
+		lock.release();
+
+		return first;
+	}
+
+	/**
+	 * Reserve frames for later allocation with
+	 * <tt>Reservation.allocate()</tt>.
+	 *
+	 * @param frames the number of frames to reserve.
+	 * @return the reservation, or <tt>null</tt> if too few frames are free.
+	 */
+	public Reservation reserve(int frames) {
+		Lib.assertTrue(frames >= 0);
+
+		lock.acquire();
+		Reservation reservation = null;
+		if (numFree - numReserved >= frames) {
+			numReserved += frames;
+			reservation = new Reservation(frames);
+		}
+		lock.release();
+
+		return reservation;
+	}
+
+	/**
+	 * Frames set aside for one holder by <tt>reserve()</tt>.
+	 */
+	public class Reservation {
+		private Reservation(int frames) {
+			this.frames = frames;
+		}
+
+		/**
+		 * Allocate a single frame against this reservation. Never fails.
+		 *
+		 * @return the physical page number.
+		 */
+		public int allocate() {
+			lock.acquire();
+			Lib.assertTrue(frames > 0, "reservation used up");
+			frames--;
+			numReserved--;
+			int ppn = allocateLocked(1);
+			lock.release();
+
+			Lib.assertTrue(ppn != -1);
+			return ppn;
+		}
+
+		/**
+		 * Give back the frames of this reservation that were not allocated.
+		 */
+		public void release() {
+			lock.acquire();
+			numReserved -= frames;
+			frames = 0;
+			lock.release();
+		}
+
+		/**
+		 * Return the number of frames still reserved.
+		 *
+		 * @return the number of frames left to allocate.
+		 */
+		public int getFrames() {
+			return frames;
+		}
+
+		private int frames;
+	}
+
+	/**
+	 * Free a single frame.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void free(int ppn) {
+		freeRun(ppn, 1);
+	}
+
+	/**
+	 * Free a run of frames returned by <tt>allocateRun()</tt>.
+	 *
+	 * @param first the first physical page number of the run.
+	 * @param frames the number of frames in the run.
+	 */
+	public void freeRun(int first, int frames) {
+		lock.acquire();
+
+		Lib.assertTrue(first >= 0 && first + frames <= numFrames);
+		Lib.assertTrue(allocated.nextClearBit(first) >= first + frames,
+				"freeing a frame that is not allocated");
+		allocated.clear(first, first + frames);
+		numFree += frames;
+
+		// give back the run as the largest aligned blocks it contains
+		int frame = first, end = first + frames;
+		while (frame < end) {
+			int order = 0;
+			while (order < maxOrder && (frame & ((2 << order) - 1)) == 0
+					&& frame + (2 << order) <= end)
+				order++;
+			freeBlock(frame, order);
+			frame += 1 << order;
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Return the number of free frames, including reserved ones.
+	 *
+	 * @return the number of free frames.
+	 */
+	public int getNumFreeFrames() {
+		return numFree;
+	}
+
+	/**
+	 * Return the number of free frames that are not reserved.
+	 *
+	 * @return the number of frames available to <tt>allocate()</tt>.
+	 */
+	public int getNumAvailableFrames() {
+		return numFree - numReserved;
+	}
+
+	/**
+	 * Return the number of frames in the largest free contiguous block.
+	 *
+	 * @return the size of the largest free block.
+	 */
+	public int getLargestFreeBlock() {
+		lock.acquire();
+		int largest = 0;
+		for (int order = maxOrder; order >= 0; order--) {
+			if (blockCounts[order] > 0) {
+				largest = 1 << order;
+				break;
+			}
+		}
+		lock.release();
+		return largest;
+	}
+
+	/**
+	 * Return the external fragmentation of free memory, as the fraction of
+	 * free frames that lie outside the largest free block.
+	 *
+	 * @return a value between 0 (not fragmented) and 1.
+	 */
+	public double getFragmentation() {
+		int free = numFree;
+		if (free == 0)
+			return 0;
+		return 1.0 - (double) getLargestFreeBlock() / free;
+	}
+
+	/**
+	 * Return a summary of the free blocks of each order.
+	 *
+	 * @return a string describing the state of the allocator.
+	 */
+	public String toString() {
+		StringBuffer buf = new StringBuffer("frames: " + numFree + " free of "
+				+ numFrames + ", " + numReserved + " reserved, blocks");
+		for (int order = 0; order <= maxOrder; order++)
+			buf.append(" " + (1 << order) + ":" + blockCounts[order]);
+		return buf.toString();
+	}
+
+	private int allocateLocked(int frames) {
+		int order = 0;
+		while ((1 << order) < frames)
+			order++;
+		if (order > maxOrder)
+			return -1;
+
+		int from = order;
+		while (from <= maxOrder && blockCounts[from] == 0)
+			from++;
+		if (from > maxOrder)
+			return -1;
+
+		int first = freeHeads[from];
+		removeBlock(first, from);
+
+		// split, keeping the lower half and freeing the upper one
+		while (from > order) {
+			from--;
+			addBlock(first + (1 << from), from);
+		}
+
+		// a run that is not a power of two gives back its tail
+		for (int frame = first + frames; frame < first + (1 << order); ) {
+			int tail = 0;
+			while ((frame & ((2 << tail) - 1)) == 0
+					&& frame + (2 << tail) <= first + (1 << order))
+				tail++;
+			addBlock(frame, tail);
+			frame += 1 << tail;
+		}
+
+		allocated.set(first, first + frames);
+		numFree -= frames;
+		return first;
+	}
+
+	private void freeBlock(int frame, int order) {
+		// merge with the buddy for as long as it is free too
+		while (order < maxOrder) {
+			int buddy = frame ^ (1 << order);
+			if (buddy >= numFrames || freeOrder[buddy] != order)
+				break;
+			removeBlock(buddy, order);
+			frame = Math.min(frame, buddy);
+			order++;
+		}
+		addBlock(frame, order);
+	}
+
+	private void addBlock(int frame, int order) {
+		int head = freeHeads[order];
+		nextFree[frame] = head;
+		prevFree[frame] = -1;
+		if (head != -1)
+			prevFree[head] = frame;
+		freeHeads[order] = frame;
+		freeOrder[frame] = (byte) order;
+		blockCounts[order]++;
+	}
+
+	private void removeBlock(int frame, int order) {
+		int next = nextFree[frame], prev = prevFree[frame];
+		if (prev != -1)
+			nextFree[prev] = next;
+		else
+			freeHeads[order] = next;
+		if (next != -1)
+			prevFree[next] = prev;
+		freeOrder[frame] = -1;
+		blockCounts[order]--;
+	}
+
+	private int numFrames, maxOrder;
+
+	/** The first frame of the first free block of each order, or -1. */
+	private int[] freeHeads;
+
+	/** The free list links of the block starting at each frame. */
+	private int[] nextFree, prevFree;
+
+	/** The order of the free block starting at each frame, or -1. */
+	private byte[] freeOrder;
+
+	private int[] blockCounts;
+
+	private BitSet allocated;
+
+	private volatile int numFree, numReserved = 0;
+
+	private Lock lock;
+}
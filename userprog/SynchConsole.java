@@ -7,6 +7,11 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Unless <tt>SynchConsole.cooked</tt> is set to <tt>false</tt> in
+ * <tt>nachos.conf</tt>, input passes through a line discipline that handles
+ * backspace in the kernel and hands input to readers a line at a time.
  */
 public class SynchConsole {
 	/**
@@ -16,6 +21,7 @@ public class SynchConsole {
 	 */
 	public SynchConsole(SerialConsole console) {
 		this.console = console;
+		cooked = Config.getBoolean("SynchConsole.cooked", true);
 
 		Runnable receiveHandler = new Runnable() {
 			public void run() {
@@ -33,7 +39,8 @@ public class SynchConsole {
 	/**
 	 * Return the next unsigned byte received (in the range <tt>0</tt> through
 	 * <tt>255</tt>). If a byte has not arrived at, blocks until a byte arrives,
-	 * or returns immediately, depending on the value of <i>block</i>.
+	 * or returns immediately, depending on the value of <i>block</i>. In
+	 * cooked mode a byte is only available once its line is complete.
 	 * 
 	 * @param block <tt>true</tt> if <tt>readByte()</tt> should wait for a byte
 	 * if none is available.
@@ -41,24 +48,44 @@ public class SynchConsole {
 	 * and no byte was available.
 	 */
 	public int readByte(boolean block) {
-		int value;
+		byte[] value = new byte[1];
+		if (readBytes(value, 0, 1, block) == 0)
+			return -1;
+
+		return value[0] & 0xFF;
+	}
+
+	/**
+	 * Read up to <i>length</i> received bytes. If no byte is available, blocks
+	 * until one is, or returns immediately, depending on the value of
+	 * <i>block</i>.
+	 * 
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the maximum number of bytes to read.
+	 * @param block <tt>true</tt> if the read should wait for input.
+	 * @return the number of bytes read.
+	 */
+	public int readBytes(byte[] buf, int offset, int length, boolean block) {
 		boolean intStatus = Machine.interrupt().disable();
 		readLock.acquire();
 
-		if (block || charAvailable) {
-			charAvailable = false;
+		while (block && completed == 0) {
+			readerWaiting = true;
 			readWait.P();
-
-			value = console.readByte();
-			Lib.assertTrue(value != -1);
 		}
-		else {
-			value = -1;
+
+		int amount = Math.min(length, completed);
+		for (int i = 0; i < amount; i++) {
+			buf[offset + i] = inputBuffer[inputHead];
+			inputHead = (inputHead + 1) % inputBuffer.length;
 		}
+		inputCount -= amount;
+		completed -= amount;
 
 		readLock.release();
 		Machine.interrupt().restore(intStatus);
-		return value;
+		return amount;
 	}
 
 	/**
@@ -70,9 +97,36 @@ public class SynchConsole {
 		return new File(true, false);
 	}
 
+	/**
+	 * Run the line discipline over a batch of received bytes. In cooked mode,
+	 * a backspace erases the last byte of the line being typed, and bytes
+	 * only become readable when a newline arrives or the line fills the input
+	 * buffer. A blocked reader is woken once per batch that completes input.
+	 */
 	private void receiveInterrupt() {
-		charAvailable = true;
-		readWait.V();
+		int oldCompleted = completed;
+
+		for (int c = console.readByte(); c != -1; c = console.readByte()) {
+			if (cooked && c == '\b') {
+				if (inputCount > completed)
+					inputCount--;
+				continue;
+			}
+
+			// no room, and nothing left to edit
+			if (inputCount == inputBuffer.length)
+				continue;
+
+			inputBuffer[(inputHead + inputCount) % inputBuffer.length] = (byte) c;
+			inputCount++;
+			if (!cooked || c == '\n' || inputCount == inputBuffer.length)
+				completed = inputCount;
+		}
+
+		if (completed > oldCompleted && readerWaiting) {
+			readerWaiting = false;
+			readWait.V();
+		}
 	}
 
 	/**
@@ -87,6 +141,26 @@ public class SynchConsole {
 		writeLock.release();
 	}
 
+	/**
+	 * Send a run of bytes, in as few transfers as the console's transmit
+	 * buffer allows. Blocks until every byte has been sent, so output written
+	 * before a read is always visible before the read begins.
+	 * 
+	 * @param buf the buffer containing the bytes to send.
+	 * @param offset the offset in the buffer of the first byte.
+	 * @param length the number of bytes to send.
+	 */
+	public void writeBytes(byte[] buf, int offset, int length) {
+		writeLock.acquire();
+		while (length > 0) {
+			int amount = console.writeBytes(buf, offset, length);
+			writeWait.P();
+			offset += amount;
+			length -= amount;
+		}
+		writeLock.release();
+	}
+
 	/**
 	 * Return an <tt>OpenFile</tt> that can be used to write this as a file.
 	 * 
@@ -100,7 +174,19 @@ public class SynchConsole {
 		writeWait.V();
 	}
 
-	private boolean charAvailable = false;
+	private boolean cooked;
+
+	/** Received bytes, in a ring starting at <tt>inputHead</tt>. */
+	private byte[] inputBuffer = new byte[inputBufferSize];
+
+	private int inputHead = 0, inputCount = 0;
+
+	/** The number of buffered bytes that belong to completed lines. */
+	private int completed = 0;
+
+	private boolean readerWaiting = false;
+
+	private static final int inputBufferSize = 256;
 
 	private SerialConsole console;
 
@@ -128,24 +214,14 @@ public class SynchConsole {
 			if (!canRead)
 				return 0;
 
-			int i;
-			for (i = 0; i < length; i++) {
-				int value = SynchConsole.this.readByte(false);
-				if (value == -1)
-					break;
-
-				buf[offset + i] = (byte) value;
-			}
-
-			return i;
+			return SynchConsole.this.readBytes(buf, offset, length, false);
 		}
 
 		public int write(byte[] buf, int offset, int length) {
 			if (!canWrite)
 				return 0;
 
-			for (int i = 0; i < length; i++)
-				SynchConsole.this.writeByte(buf[offset + i]);
+			SynchConsole.this.writeBytes(buf, offset, length);
 
 			return length;
 		}
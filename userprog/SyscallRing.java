@@ -0,0 +1,233 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A submission ring and a completion ring that a user process shares with the
+ * kernel, so that many read, write, open and close operations can be issued
+ * with a single trap. Both rings live in the process's own memory. Each ring
+ * starts with a two word header, <tt>head</tt> followed by <tt>tail</tt>, and
+ * is followed by a power-of-two number of entries.
+ *
+ * <p>
+ * A submission entry is five words: <tt>opcode</tt>, <tt>fd</tt>,
+ * <tt>addr</tt>, <tt>len</tt> and <tt>userData</tt>. A completion entry is two
+ * words: the <tt>userData</tt> of the submission and the result the
+ * equivalent system call would have returned. The process produces
+ * submissions by advancing the submission tail and consumes completions by
+ * advancing the completion head; the kernel owns the other two indices.
+ *
+ * <p>
+ * Submissions are consumed when the process calls <tt>ringenter()</tt>. A ring
+ * registered with the <tt>ringPoll</tt> flag is also drained by a kernel
+ * thread that is woken every time the process is switched out, so a process
+ * that is preempted does not need to trap at all. The poller only looks at
+ * the rings from its own thread, never during the context switch, and takes
+ * the process's <tt>fileTableLock</tt> around each operation.
+ */
+public class SyscallRing {
+	/**
+	 * Register a new pair of rings for a process.
+	 *
+	 * @param process the process owning the rings.
+	 * @param sqAddr the virtual address of the submission ring.
+	 * @param cqAddr the virtual address of the completion ring.
+	 * @param entries the number of entries in each ring.
+	 * @param poll <tt>true</tt> to drain submissions at context switches.
+	 */
+	public SyscallRing(UserProcess process, int sqAddr, int cqAddr,
+			int entries, boolean poll) {
+		this.process = process;
+		this.sqAddr = sqAddr;
+		this.cqAddr = cqAddr;
+		this.mask = entries - 1;
+		lock = new Lock();
+
+		if (poll) {
+			pollWait = new Semaphore(0);
+			poller = new KThread(new Runnable() {
+				public void run() {
+					pollLoop();
+				}
+			});
+			poller.setName("ring poller").fork();
+		}
+	}
+
+	/**
+	 * Test whether the specified ring geometry can be registered.
+	 *
+	 * @param entries the number of entries in each ring.
+	 * @return <tt>true</tt> if <i>entries</i> is a supported power of two.
+	 */
+	public static boolean validSize(int entries) {
+		return entries > 0 && entries <= maxEntries
+				&& (entries & (entries - 1)) == 0;
+	}
+
+	/**
+	 * Consume up to <i>toSubmit</i> pending submissions, and post a completion
+	 * for each of them. Stops early when the submission ring is empty or the
+	 * completion ring is full.
+	 *
+	 * @param toSubmit the maximum number of submissions to consume.
+	 * @return the number of submissions consumed, or -1 if the rings could
+	 * not be accessed.
+	 */
+	public int submit(int toSubmit) {
+		lock.acquire();
+
+		int[] sq = new int[2], cq = new int[2];
+		if (closed || !readHeader(sqAddr, sq) || !readHeader(cqAddr, cq)) {
+			lock.release();
+			return -1;
+		}
+		int sqHead = sq[0], sqTail = sq[1], cqHead = cq[0], cqTail = cq[1];
+
+		byte[] sqe = new byte[sqeSize];
+		byte[] cqe = new byte[cqeSize];
+		int submitted = 0;
+		while (submitted < toSubmit && sqHead != sqTail
+				&& cqTail - cqHead <= mask) {
+			int entryAddr = sqAddr + headerSize + (sqHead & mask) * sqeSize;
+			if (process.readVirtualMemory(entryAddr, sqe) != sqeSize)
+				break;
+
+			int result = execute(Lib.bytesToInt(sqe, 0),
+					Lib.bytesToInt(sqe, 4), Lib.bytesToInt(sqe, 8),
+					Lib.bytesToInt(sqe, 12));
+
+			Lib.bytesFromInt(cqe, 0, Lib.bytesToInt(sqe, 16));
+			Lib.bytesFromInt(cqe, 4, result);
+			entryAddr = cqAddr + headerSize + (cqTail & mask) * cqeSize;
+			if (process.writeVirtualMemory(entryAddr, cqe) != cqeSize)
+				break;
+
+			sqHead++;
+			cqTail++;
+			submitted++;
+		}
+
+		// publish the new indices only after the entries are in place
+		writeWord(sqAddr, sqHead);
+		writeWord(cqAddr + 4, cqTail);
+
+		lock.release();
+
+		Lib.debug(dbgProcess, "ring consumed " + submitted + " submissions");
+		return submitted;
+	}
+
+	/**
+	 * Called when the owning process is switched out. Only wakes the poller,
+	 * which looks for submissions from its own thread: the rings are in user
+	 * memory, and touching it here could fault in the middle of the switch.
+	 */
+	public void kick() {
+		if (poller == null || closed || pollPending)
+			return;
+
+		pollPending = true;
+		pollWait.V();
+	}
+
+	/**
+	 * Unregister the rings, waiting for a submission being executed to
+	 * finish. The poller, if any, exits the next time it runs.
+	 */
+	public void close() {
+		lock.acquire();
+		closed = true;
+		lock.release();
+		if (poller != null)
+			pollWait.V();
+	}
+
+	private void pollLoop() {
+		int[] sq = new int[2];
+		while (true) {
+			pollWait.P();
+			if (closed)
+				return;
+			pollPending = false;
+			if (readHeader(sqAddr, sq) && sq[0] != sq[1])
+				submit(mask + 1);
+		}
+	}
+
+	private int execute(int opcode, int fd, int addr, int len) {
+		process.fileTableLock.acquire();
+		int result;
+		switch (opcode) {
+		case opNop:
+			result = 0;
+			break;
+		case opRead:
+			result = process.handleRead(fd, addr, len);
+			break;
+		case opWrite:
+			result = process.handleWrite(fd, addr, len);
+			break;
+		case opOpen:
+			result = process.handleOpen(addr);
+			break;
+		case opClose:
+			result = process.handleClose(fd);
+			break;
+		default:
+			result = -1;
+		}
+		process.fileTableLock.release();
+		return result;
+	}
+
+	/**
+	 * Read the <tt>head</tt> and <tt>tail</tt> of a ring. The indices only
+	 * ever grow, so any value may be valid and failure is reported apart.
+	 *
+	 * @param ringAddr the virtual address of the ring.
+	 * @param indices receives <tt>head</tt> and <tt>tail</tt>.
+	 * @return <tt>false</tt> if the header could not be read.
+	 */
+	private boolean readHeader(int ringAddr, int[] indices) {
+		byte[] header = new byte[headerSize];
+		if (process.readVirtualMemory(ringAddr, header) != headerSize)
+			return false;
+		indices[0] = Lib.bytesToInt(header, 0);
+		indices[1] = Lib.bytesToInt(header, 4);
+		return true;
+	}
+
+	private void writeWord(int vaddr, int value) {
+		process.writeVirtualMemory(vaddr, Lib.bytesFromInt(value));
+	}
+
+	/** Flag to <tt>ringsetup()</tt>: drain submissions at context switches. */
+	public static final int ringPoll = 1;
+
+	/** Submission opcodes. */
+	public static final int opNop = 0, opRead = 1, opWrite = 2, opOpen = 3,
+			opClose = 4;
+
+	private static final int headerSize = 8, sqeSize = 20, cqeSize = 8;
+
+	private static final int maxEntries = 256;
+
+	private UserProcess process;
+
+	private int sqAddr, cqAddr, mask;
+
+	private Lock lock;
+
+	private KThread poller = null;
+
+	private Semaphore pollWait;
+
+	private boolean pollPending = false;
+
+	private boolean closed = false;
+
+	private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,120 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import java.util.HashMap;
+
+/**
+ * A kernel-wide cache of the pages of read-only COFF sections. Every process
+ * running the same executable maps the same physical frame for a given page of
+ * a read-only section, so the page is only loaded from the executable once. A
+ * frame is reference counted and goes back to the frame allocator when the last
+ * process using it unloads its sections.
+ */
+public class TextPageCache {
+	/**
+	 * Allocate a new, empty text page cache.
+	 */
+	public TextPageCache() {
+		frames = new SharedPage[Machine.processor().getNumPhysPages()];
+		lock = new Lock();
+	}
+
+	/**
+	 * Map a page of a read-only section. If the page is already resident for
+	 * another process running the same executable, its frame is shared;
+	 * otherwise a free frame is allocated and the page is loaded into it.
+	 *
+	 * @param executable identifies the executable the section belongs to.
+	 * @param sectionNumber the number of the section within the executable.
+	 * @param section the read-only section.
+	 * @param spn the page number within the section.
+	 * @return the physical page number holding the page, or -1 if no frame
+	 * was available.
+	 */
+	public int acquire(String executable, int sectionNumber,
+			CoffSection section, int spn) {
+		Lib.assertTrue(section.isReadOnly());
+
+		String key = executable + "/" + sectionNumber + "/" + spn;
+		lock.acquire();
+
+		SharedPage page = pages.get(key);
+		if (page == null) {
+			int frame = UserKernel.frameAllocator.allocate();
+			if (frame == -1) {
+				lock.release();
+				return -1;
+			}
+			section.loadPage(spn, frame);
+
+			page = new SharedPage(key, frame);
+			pages.put(key, page);
+			frames[frame] = page;
+			Lib.debug(dbgProcess, "loaded shared page " + key + " into frame "
+					+ frame);
+		}
+		page.refCount++;
+		int ppn = page.frame;
+
+		lock.release();
+		return ppn;
+	}
+
+	/**
+	 * Drop one reference to a shared frame. The frame is released when its
+	 * last user lets go of it.
+	 *
+	 * @param ppn the physical page number.
+	 * @return <tt>true</tt> if the frame belongs to this cache, <tt>false</tt>
+	 * if it is a private frame that the caller must release itself.
+	 */
+	public boolean release(int ppn) {
+		lock.acquire();
+
+		SharedPage page = frames[ppn];
+		if (page == null) {
+			lock.release();
+			return false;
+		}
+		if (--page.refCount == 0) {
+			pages.remove(page.key);
+			frames[ppn] = null;
+			UserKernel.frameAllocator.free(page.frame);
+			Lib.debug(dbgProcess, "released shared page " + page.key);
+		}
+
+		lock.release();
+		return true;
+	}
+
+	/**
+	 * Return the number of frames currently shared through this cache.
+	 *
+	 * @return the number of resident shared pages.
+	 */
+	public int getNumSharedFrames() {
+		return pages.size();
+	}
+
+	private static class SharedPage {
+		SharedPage(String key, int frame) {
+			this.key = key;
+			this.frame = frame;
+		}
+
+		String key;
+		int frame;
+		int refCount = 0;
+	}
+
+	private HashMap<String, SharedPage> pages = new HashMap<String, SharedPage>();
+
+	/** The shared page held by each physical frame, or <tt>null</tt>. */
+	private SharedPage[] frames;
+
+	private Lock lock;
+
+	private static final char dbgProcess = 'a';
+}
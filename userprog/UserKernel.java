@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -30,11 +29,10 @@ public class UserKernel extends ThreadedKernel {
 				exceptionHandler();
 			}
 		});
-		//Initialize freePage LinkedList
-		for(int i = 0; i < Machine.processor().getNumPhysPages();i++){
-			freePages.add(new TranslationEntry(0,i,false,false,false,false));
-		}
-		lock = new Lock();
+		frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+		textPageCache = new TextPageCache();
+		executableCache = new ExecutableCache(Config.getInteger(
+				"ExecutableCache.maxBytes", 256 * 1024));
 	}
 
 	/**
@@ -116,60 +114,6 @@ public class UserKernel extends ThreadedKernel {
 		super.terminate();
 	}
 
-	/**
- 	 * Acquire one free page from the linkedlist. 
- 	 * @return pageId or -1 when there is no available pages
- 	 */
-	public static TranslationEntry acquirePage(){
-		lock.acquire();
-		TranslationEntry res = freePages.poll();
-		res.valid = true;
-		lock.release();
-		return res;
-	}
-
-	public static TranslationEntry[] acquirePages(int numPages){
-		TranslationEntry[] returnPages = null;
-		lock.acquire();
-		if (!freePages.isEmpty() && freePages.size() >= numPages) {
-			returnPages = new TranslationEntry[numPages];
-			for (int i = 0; i < numPages; ++i) {
-				returnPages[i] = freePages.remove();
-				returnPages[i].valid = true;
-			}
-		}		
-		lock.release();
-		return returnPages;
-	}
-
- 	/**
-	 * Release the currentPage and put it back into freepage linkedlist
-	 * @param pageId the id of a page
-  	 */
-	public static void releasePage(TranslationEntry te){
-		lock.acquire();
-		te.valid = false;
-		freePages.addLast(te);
-		lock.release();
-	}
-
-	public static void releasePages(TranslationEntry[] pageTable){
-		lock.acquire();
-		for (TranslationEntry te : pageTable) {
-			freePages.add(te);
-			if(te !=null)te.valid = false;
-		}
-		lock.release();
-	}
-
-	public static int getAvailablePages(){
-		int size = 0;
-		lock.acquire();
-		size = freePages.size();
-		lock.release();
-		return size;
-	}
-
 	//helper method:
 	public static int vpn(int vaddr){
 		return vaddr/Processor.pageSize;
@@ -184,11 +128,15 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The allocator of physical frames. */
+	public static FrameAllocator frameAllocator;
+
+	/** Read-only pages shared by processes running the same executable. */
+	public static TextPageCache textPageCache;
+
+	/** Parsed images of recently executed programs. */
+	public static ExecutableCache executableCache;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
-	
-	//Global linkedList of free physical address of free pages in the kernel
-	protected static LinkedList<TranslationEntry> freePages = new LinkedList<TranslationEntry>();
-
-	protected static Lock lock;
 }
@@ -25,8 +25,6 @@ public class UserProcess {
 	 */
 	public UserProcess() {
 
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
 		parent = null;
 		status = -999;
 		childProcesses = new HashMap<Integer, UserProcess>();
@@ -72,6 +70,8 @@ public class UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+		if (ring != null)
+			ring.kick();
 	}
 
 	/**
@@ -143,23 +143,17 @@ public class UserProcess {
 		if(!validAddress(vaddr)) return -1;
 		byte[] memory = Machine.processor().getMemory();
 
-		//Address translation
-		int vpn = vaddr/pageSize;
-		int voffset = vaddr%pageSize;
-		int end = (vaddr+length)/pageSize;
-
-		int ppn = 0;
-		int ppAddr = 0;
-		int bytesToCopy = 0;
+		//Copy page by page, stopping at the first unmapped page
 		int bytesCopied = 0;
-		for(int i = vpn; i <= end; i++){
-			ppn = pageTable[i].ppn;//Get the physical page value of a virtual page number
-			pageTable[i].used = true; //pageTable[i].dirty = true;
-			if(i == vpn)ppAddr += voffset;
-			ppAddr += ppn*pageSize;
-			if(i == end) bytesToCopy = length%pageSize;
-			System.arraycopy(memory, ppAddr, data, offset, bytesToCopy);
-			offset += bytesToCopy;
+		while(bytesCopied < length){
+			int addr = vaddr + bytesCopied;
+			int vpn = Processor.pageFromAddress(addr);
+			int pte = pageTable.get(vpn);
+			if((pte & PackedPageTable.validBit) == 0) break;
+			int pageOffset = UserKernel.offset(addr);
+			int bytesToCopy = Math.min(length - bytesCopied, pageSize - pageOffset);
+			System.arraycopy(memory, PackedPageTable.ppn(pte)*pageSize + pageOffset, data, offset + bytesCopied, bytesToCopy);
+			pageTable.setBits(vpn, PackedPageTable.usedBit);
 			bytesCopied += bytesToCopy;
 		}
 		return bytesCopied;
@@ -196,26 +190,21 @@ public class UserProcess {
 				&& offset + length <= data.length);
 		if(!validAddress(vaddr)) return -1;
 		byte[] memory = Machine.processor().getMemory();
-		int vpn = vaddr/pageSize;
-                int voffset = vaddr%pageSize;
-                int end = (vaddr+length)/pageSize;
-
-                int ppn = 0;
-                int ppAddr = 0;
-                int bytesToCopy = 0;
-                int bytesCopied = 0;
-                for(int i = vpn; i <= end; i++){
-                        ppn = pageTable[i].ppn;//Get the physical page value of a virtual page number
-                        pageTable[i].used = true; 
-			pageTable[i].dirty = true;
-                        if(i == 0)ppAddr += voffset;
-                        ppAddr += ppn*pageSize;
-                        if(i == end) bytesToCopy = length%pageSize;
-                        System.arraycopy(data, offset, memory, ppAddr, bytesToCopy);
-                        offset += bytesToCopy;
-                        bytesCopied += bytesToCopy;
-                }
-                return bytesCopied;
+
+		//Copy page by page, stopping at the first unmapped or read-only page
+		int bytesCopied = 0;
+		while(bytesCopied < length){
+			int addr = vaddr + bytesCopied;
+			int vpn = Processor.pageFromAddress(addr);
+			int pte = pageTable.get(vpn);
+			if((pte & PackedPageTable.validBit) == 0 || (pte & PackedPageTable.readOnlyBit) != 0) break;
+			int pageOffset = UserKernel.offset(addr);
+			int bytesToCopy = Math.min(length - bytesCopied, pageSize - pageOffset);
+			System.arraycopy(data, offset + bytesCopied, memory, PackedPageTable.ppn(pte)*pageSize + pageOffset, bytesToCopy);
+			pageTable.setBits(vpn, PackedPageTable.usedBit | PackedPageTable.dirtyBit);
+			bytesCopied += bytesToCopy;
+		}
+		return bytesCopied;
 	}
 
 
@@ -232,20 +221,11 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		ExecutableCache.Image image = UserKernel.executableCache.open(name);
+		if (image == null)
 			return false;
-		}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		coff = image.getCoff();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -277,12 +257,15 @@ public class UserProcess {
 		initialPC = coff.getEntryPoint();
 
 		// next comes the stack; stack pointer initially points to top of it
-		numPages += stackPages;
+		numPages += getStackPadding(numPages) + stackPages;
 		initialSP = numPages * pageSize;
 
 		// and finally reserve 1 page for arguments
 		numPages++;
 
+		// processes running the same executable share its read-only pages
+		executableKey = image.getKey();
+
 		if (!loadSections())
 			return false;
 
@@ -306,6 +289,18 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the number of extra pages to place below the stack, so that the
+	 * address space can be laid out to suit the kernel. The extra pages are
+	 * simply more stack.
+	 * 
+	 * @param sectionPages the number of pages taken by the COFF sections.
+	 * @return the number of extra stack pages.
+	 */
+	protected int getStackPadding(int sectionPages) {
+		return 0;
+	}
+
 	/**
 	 * Allocates memory for this process, and loads the COFF sections into
 	 * memory. If this returns successfully, the process will definitely be run
@@ -314,65 +309,76 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		try{
-			pageTable = UserKernel.acquirePages(numPages);
-			for(int i = 0; i < pageTable.length;i++)
-				pageTable[i].vpn = i;
-
-			for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
-				CoffSection section = coff.getSection(sectionNumber);
+		// pages of read-only sections come from the shared text page cache
+		int sharedPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (section.isReadOnly())
+				sharedPages += section.getLength();
+		}
 
-				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+		FrameAllocator.Reservation reservation =
+				UserKernel.frameAllocator.reserve(numPages - sharedPages);
+		if (reservation == null) {
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
 
-				int firstVPN = section.getFirstVPN();
-				for (int i = 0; i < section.getLength(); i++)
-					section.loadPage(i, pageTable[i+firstVPN].ppn);
+		pageTable = new PackedPageTable();
+		for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
+			CoffSection section = coff.getSection(sectionNumber);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+				if (section.isReadOnly()) {
+					int ppn = UserKernel.textPageCache.acquire(executableKey, sectionNumber, section, i);
+					if (ppn == -1) {
+						reservation.release();
+						unloadSections();
+						coff.close();
+						Lib.debug(dbgProcess, "\tinsufficient physical memory");
+						return false;
+					}
+					pageTable.set(vpn, PackedPageTable.pack(ppn, true, true, false, false));
+				}
+				else {
+					int ppn = allocatePrivatePage(reservation, vpn);
+					section.loadPage(i, ppn);
+				}
 			}
-		}catch(Exception e){
-			System.out.println("UserProcess.loadSections() exception " + e);
 		}
-		return true;
-		/*
-		if (numPages > Machine.processor().getNumPhysPages()) {
-                        coff.close();
-                        Lib.debug(dbgProcess, "\tinsufficient physical memory");
-                        return false;
-                }
-
-                pageTable = new TranslationEntry[numPages];
-
-		System.out.println("UserKernel.loadSections(): coff.getNumSections() =  "+ coff.getNumSections());
-                for (int s = 0; s < coff.getNumSections(); s++) {
-                        CoffSection section = coff.getSection(s);
-
-                        Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-                                        + " section (" + section.getLength() + " pages)");
 
-                        for (int i = 0; i < section.getLength(); i++) {
-                                int vpn = section.getFirstVPN() + i;
-                                int ppn = UserKernel.acquirePage();
-                                pageTable[vpn] = new TranslationEntry(vpn, ppn, true, section.isReadOnly(),false, false);
-                                section.loadPage(i,ppn);
-                        }
-                }
-
-               // for (int i = numPages - stackPages ; i < numPages; i++)
-                //        pageTable[i] = new TranslationEntry(i, UserKernel.acquirePage(), true, false, false, false);
+		// the remaining private pages hold the stack and the arguments
+		for (int vpn = numPages - stackPages - 1; vpn < numPages; vpn++)
+			allocatePrivatePage(reservation, vpn);
+		reservation.release();
+		return true;
+	}
 
-                return true;*/
+	private int allocatePrivatePage(FrameAllocator.Reservation reservation, int vpn) {
+		int ppn = reservation.allocate();
+		pageTable.set(vpn, PackedPageTable.pack(ppn, true, false, false, false));
+		return ppn;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		//coff.close()
-		UserKernel.releasePages(pageTable);	
-		/*
-		for(TranslationEntry t: pageTable){
-			t.used = false;
-			UserKernel.releasePage(t.ppn);
-		}*/
+		for (int vpn = pageTable.nextEntry(0); vpn != -1; vpn = pageTable.nextEntry(vpn + 1)) {
+			int pte = pageTable.get(vpn);
+			if ((pte & PackedPageTable.validBit) == 0)
+				continue;
+			pageTable.set(vpn, 0);
+			// shared read-only pages are reference counted by the cache
+			int ppn = PackedPageTable.ppn(pte);
+			if ((pte & PackedPageTable.readOnlyBit) != 0 && UserKernel.textPageCache.release(ppn))
+				continue;
+			UserKernel.frameAllocator.free(ppn);
+		}
 	}
 
 	/**
@@ -406,6 +412,8 @@ public class UserProcess {
 		//Any other process should ignore the syscall and return immediately				
 		System.out.println("Enter halt!");
 		if (this.PID != ROOT) return -1;
+		if (ThreadedKernel.fileSystem != null)
+			ThreadedKernel.fileSystem.sync();
 		Machine.halt();
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -427,7 +435,7 @@ public class UserProcess {
 	 */
 	protected boolean validAddress(int address){
 		int vpn = Processor.pageFromAddress(address);
-		return (vpn<numPages && vpn>=0);
+		return (pageTable.get(vpn) & PackedPageTable.validBit) != 0;
 	}
 
 	/**
@@ -502,8 +510,8 @@ public class UserProcess {
 		OpenFile file = fileTable[fileDescriptor];
 		if (file == null) return -1;
 		byte[] buf = new byte[size];
-		readVirtualMemory(bufferPointer, buf);//Do we need to check whether file descriptor is in range?
-		int bytesWritten = file.write(fileDescriptor,buf,0,size);
+		if(readVirtualMemory(bufferPointer, buf) != size) return -1;
+		int bytesWritten = file.write(buf,0,size);
 		return bytesWritten;
 	}
 
@@ -535,6 +543,18 @@ public class UserProcess {
 		return -1;
 	}
 
+	/**
+	 * Handle the fsync() system call.
+	 * @param fileDescriptor file descriptor
+	 * @return 0 once the data written to the file is on disk, -1 on error
+	 */
+	protected int handleFsync(int fileDescriptor){
+		if(fileDescriptor < 0 || fileDescriptor >= 16) return -1;
+		OpenFile file = fileTable[fileDescriptor];
+		if(file == null) return -1;
+		return file.sync() ? 0 : -1;
+	}
+
 	/**
  	 * Handle the exec() system call.
  	 * @param fileDescrptior file descriptor
@@ -589,6 +609,34 @@ public class UserProcess {
 	}
 	
 
+	/**
+	 * Handle the ringsetup() system call. Registers a submission ring and a
+	 * completion ring in this process's memory.
+	 * @param sqAddr address of the submission ring
+	 * @param cqAddr address of the completion ring
+	 * @param entries number of entries in each ring, a power of two
+	 * @param flags <tt>SyscallRing.ringPoll</tt> to drain at context switches
+	 * @return 0 on success, -1 on error
+	 */
+	protected int handleRingSetup(int sqAddr, int cqAddr, int entries, int flags){
+		if(ring != null || !SyscallRing.validSize(entries)) return -1;
+		if(!validAddress(sqAddr) || !validAddress(cqAddr)) return -1;
+		ring = new SyscallRing(this, sqAddr, cqAddr, entries,
+				(flags & SyscallRing.ringPoll) != 0);
+		return 0;
+	}
+
+	/**
+	 * Handle the ringenter() system call. Consumes pending submissions and
+	 * posts their completions.
+	 * @param toSubmit the maximum number of submissions to consume
+	 * @return number of submissions consumed, or -1 on error
+	 */
+	protected int handleRingEnter(int toSubmit){
+		if(ring == null || toSubmit < 0) return -1;
+		return ring.submit(toSubmit);
+	}
+
 	/**
  	 * Handle exit and cleanup of a process
  	 * @param status the exit status of current process
@@ -600,6 +648,10 @@ public class UserProcess {
 				child.status = status;
 			}
 		}
+		if(ring != null){
+			ring.close();
+			ring = null;
+		}
 		//close all opened files
 		for(int i = 0; i < fileTable.length;i++){
 			handleClose(i);
@@ -616,7 +668,8 @@ public class UserProcess {
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallRingSetup = 13, syscallRingEnter = 14,
+			syscallFsync = 15;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -670,6 +723,19 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  ringsetup(struct sqring *sq, struct cqring *cq,
+	 * 								int entries, int flags);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  ringenter(int toSubmit);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  fsync(int fd);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -687,21 +753,25 @@ public class UserProcess {
 		case syscallHalt:
 			return handleHalt();
 		case syscallCreate:
-			return handleCreate(a0);
 		case syscallOpen:
-			return handleOpen(a0);
 		case syscallRead:
-			return handleRead(a0,a1,a2);
 		case syscallWrite:
-			return handleWrite(a0,a1,a2);
 		case syscallClose:
-			return handleClose(a0);
+		case syscallFsync:
+			fileTableLock.acquire();
+			int result = handleFileSyscall(syscall, a0, a1, a2);
+			fileTableLock.release();
+			return result;
 		case syscallUnlink:
 			return handleUnlink(a0);
 		case syscallExec:
 			return handleExecute(a0,a1,a2);
 		case syscallJoin:
 			return handleJoin(a0,a1);
+		case syscallRingSetup:
+			return handleRingSetup(a0,a1,a2,a3);
+		case syscallRingEnter:
+			return handleRingEnter(a0);
 		case syscallExit:
 			handleExit(a0);
 		default:
@@ -711,6 +781,45 @@ public class UserProcess {
 		return 0;
 	}
 
+	/**
+	 * Handle a system call that uses the file table. Called by
+	 * <tt>handleSyscall()</tt>, holding <tt>fileTableLock</tt>.
+	 */
+	private int handleFileSyscall(int syscall, int a0, int a1, int a2) {
+		switch (syscall) {
+		case syscallCreate:
+			return handleCreate(a0);
+		case syscallOpen:
+			return handleOpen(a0);
+		case syscallRead:
+			return handleRead(a0,a1,a2);
+		case syscallWrite:
+			return handleWrite(a0,a1,a2);
+		case syscallClose:
+			return handleClose(a0);
+		case syscallFsync:
+			return handleFsync(a0);
+		default:
+			Lib.assertNotReached("Not a file system call!");
+		}
+		return -1;
+	}
+
+	/**
+	 * Read one of this process's user registers. They are only in the
+	 * processor while this process's own thread is running; a kernel thread
+	 * working for the process, such as a ring poller, reads the copy saved
+	 * when the process was switched out.
+	 *
+	 * @param number the register to read.
+	 * @return the value of the register.
+	 */
+	protected int readUserRegister(int number) {
+		if (thread == null || KThread.currentThread() == thread)
+			return Machine.processor().readRegister(number);
+		return thread.userRegisters[number];
+	}
+
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
@@ -742,16 +851,14 @@ public class UserProcess {
 	}
 	
 
-	protected TranslationEntry getPageFromPageTable(int vaddr){
-		if(validAddress(vaddr)) return pageTable[UserKernel.vpn(vaddr)];
-		return null;
-	}
-
 	/** The program being run by this process. */
 	protected Coff coff;
 
+	/** Identifies the executable when sharing its read-only pages. */
+	protected String executableKey;
+
 	/** This process's page table. */
-	protected TranslationEntry[] pageTable;
+	protected PackedPageTable pageTable;
 
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
@@ -777,5 +884,9 @@ public class UserProcess {
         protected int PID;//Process id for the current process
 	protected int status;//The status of current process
         protected OpenFile[] fileTable;
+	/** Held while the file table is used, by a syscall or by the ring poller */
+	protected Lock fileTableLock = new Lock();
 	private UThread thread;
+	/** Batched syscall rings, or null if none were registered */
+	private SyscallRing ring;
 }
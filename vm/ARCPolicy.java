@@ -0,0 +1,119 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Adaptive replacement cache. Resident frames are split between <tt>t1</tt>,
+ * pages referenced once since they were faulted in, and <tt>t2</tt>, pages
+ * referenced again. Ghost lists <tt>b1</tt> and <tt>b2</tt> remember the
+ * pages recently evicted from each. A fault on a page in <tt>b1</tt> means
+ * recency deserved more room, so the target size <tt>p</tt> of <tt>t1</tt>
+ * grows; a fault on a page in <tt>b2</tt> shrinks it.
+ *
+ * <p>
+ * The kernel cannot see individual hits, so a resident page is moved to
+ * <tt>t2</tt> when its used bit is found set at the next replacement.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void frameMapped(int ppn) {
+		Long key = VMKernel.pageKey(ppn);
+
+		if (b1.remove(key)) {
+			p = Math.min(numFrames, p + Math.max(1, b2.size() / Math.max(1, b1.size())));
+			t2.add(ppn);
+		}
+		else if (b2.remove(key)) {
+			p = Math.max(0, p - Math.max(1, b1.size() / Math.max(1, b2.size())));
+			t2.add(ppn);
+		}
+		else {
+			t1.add(ppn);
+		}
+
+		// the ghost lists together remember at most one memory's worth
+		while (t1.size() + b1.size() > numFrames && !b1.isEmpty())
+			removeFirst(b1);
+		while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * numFrames
+				&& !b2.isEmpty())
+			removeFirst(b2);
+	}
+
+	public void frameUnmapped(int ppn) {
+		t1.remove(ppn);
+		t2.remove(ppn);
+	}
+
+	public int selectVictim() {
+		promoteUsed(t1);
+		promoteUsed(t2);
+
+		boolean fromT1 = !t1.isEmpty() && t1.size() > p;
+		int ppn = fromT1 ? evictFrom(t1, b1) : evictFrom(t2, b2);
+		if (ppn == -1)
+			ppn = fromT1 ? evictFrom(t2, b2) : evictFrom(t1, b1);
+		return ppn;
+	}
+
+	/**
+	 * Move every frame of a list whose page was used to the most recently
+	 * used end of <tt>t2</tt>.
+	 */
+	private void promoteUsed(LinkedHashSet<Integer> list) {
+		ArrayList<Integer> used = new ArrayList<Integer>();
+		for (Iterator<Integer> i = list.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				i.remove();
+				used.add(ppn);
+			}
+		}
+		t2.addAll(used);
+	}
+
+	/**
+	 * Take the least recently used evictable frame of a list, remembering its
+	 * page in the matching ghost list.
+	 */
+	private int evictFrom(LinkedHashSet<Integer> list, LinkedHashSet<Long> ghosts) {
+		for (Iterator<Integer> i = list.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (VMKernel.isEvictable(ppn)) {
+				i.remove();
+				ghosts.add(VMKernel.pageKey(ppn));
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	private static <T> void removeFirst(LinkedHashSet<T> set) {
+		Iterator<T> i = set.iterator();
+		i.next();
+		i.remove();
+	}
+
+	private int numFrames;
+
+	/** The target size of <tt>t1</tt>. */
+	private int p = 0;
+
+	/** Resident frames, least recently used first. */
+	private LinkedHashSet<Integer> t1 = new LinkedHashSet<Integer>(),
+			t2 = new LinkedHashSet<Integer>();
+
+	/** Pages recently evicted from <tt>t1</tt> and <tt>t2</tt>. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>(),
+			b2 = new LinkedHashSet<Long>();
+}
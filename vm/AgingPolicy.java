@@ -0,0 +1,50 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least recently used replacement by aging. Every frame
+ * has an 8-bit counter. Each time a victim is needed, every counter is
+ * shifted right with the frame's used bit entering at the top, and the used
+ * bits are cleared; the frame with the smallest counter is evicted.
+ */
+public class AgingPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		age = new int[numFrames];
+	}
+
+	public void frameMapped(int ppn) {
+		// a page that was just faulted in has just been referenced
+		age[ppn] = 0x80;
+	}
+
+	public void frameUnmapped(int ppn) {
+		age[ppn] = 0;
+	}
+
+	public int selectVictim() {
+		int victim = -1;
+		for (int ppn = 0; ppn < numFrames; ppn++) {
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+
+			age[ppn] >>>= 1;
+			if (VMKernel.isUsed(ppn)) {
+				age[ppn] |= 0x80;
+				VMKernel.clearUsed(ppn);
+			}
+			if (victim == -1 || age[ppn] < age[victim])
+				victim = ppn;
+		}
+		return victim;
+	}
+
+	private int numFrames;
+
+	private int[] age;
+}
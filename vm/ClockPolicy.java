@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The clock, or second chance, algorithm. A hand sweeps the frames in order;
+ * a frame whose page was used since the hand last passed loses its used bit
+ * and is spared, and the first frame found unused is the victim.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void frameMapped(int ppn) {
+	}
+
+	public void frameUnmapped(int ppn) {
+	}
+
+	public int selectVictim() {
+		// two sweeps clear every used bit, so the second one must succeed
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+			if (VMKernel.isUsed(ppn))
+				VMKernel.clearUsed(ppn);
+			else
+				return ppn;
+		}
+		return -1;
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+}
@@ -0,0 +1,62 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The enhanced second chance algorithm, which ranks frames by their (used,
+ * dirty) bits. The hand first looks for a frame that is neither used nor
+ * dirty, without changing anything. Failing that, it looks for one that is
+ * dirty but unused, clearing used bits as it goes, and repeats until a victim
+ * turns up. Clean pages are preferred because they need not be written back.
+ */
+public class EnhancedSecondChancePolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new enhanced second chance policy.
+	 */
+	public EnhancedSecondChancePolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void frameMapped(int ppn) {
+	}
+
+	public void frameUnmapped(int ppn) {
+	}
+
+	public int selectVictim() {
+		for (int round = 0; round < 2; round++) {
+			int ppn = sweep(false, false);
+			if (ppn == -1)
+				ppn = sweep(true, true);
+			if (ppn != -1)
+				return ppn;
+		}
+		return -1;
+	}
+
+	/**
+	 * Advance the hand through one revolution looking for an unused frame
+	 * with the given dirty bit.
+	 */
+	private int sweep(boolean dirty, boolean clearUsed) {
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+			if (VMKernel.isUsed(ppn)) {
+				if (clearUsed)
+					VMKernel.clearUsed(ppn);
+			}
+			else if (VMKernel.isDirty(ppn) == dirty) {
+				return ppn;
+			}
+		}
+		return -1;
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+}
@@ -0,0 +1,199 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * A hash table from (process ID, virtual page number) pairs to page numbers,
+ * such as the frame holding a page or the swap slot holding its contents. The
+ * pair is packed into a single <tt>long</tt> and the table uses open
+ * addressing with linear probing over primitive arrays, so lookups, inserts
+ * and removals never allocate.
+ */
+public class InvertedPageTable {
+	/**
+	 * Allocate a new, empty table.
+	 *
+	 * @param capacity the number of mappings expected; the table grows past
+	 * it if needed.
+	 */
+	public InvertedPageTable(int capacity) {
+		int slots = 16;
+		while (slots < capacity * 2)
+			slots *= 2;
+		allocate(slots);
+	}
+
+	/**
+	 * Pack a process ID and a virtual page number into a key.
+	 *
+	 * @param pid the process ID.
+	 * @param vpn the virtual page number.
+	 * @return the key.
+	 */
+	public static long key(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Return the page number mapped to a key.
+	 *
+	 * @param key the key.
+	 * @return the page number, or -1 if the key is not mapped.
+	 */
+	public int get(long key) {
+		for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+			if (keys[slot] == key)
+				return values[slot];
+			if (keys[slot] == empty)
+				return -1;
+		}
+	}
+
+	/**
+	 * Map a key to a page number, replacing any previous mapping.
+	 *
+	 * @param key the key.
+	 * @param value the page number, which must not be negative.
+	 */
+	public void put(long key, int value) {
+		Lib.assertTrue(key != empty && value >= 0);
+
+		int slot = hash(key);
+		while (keys[slot] != empty && keys[slot] != key)
+			slot = (slot + 1) & mask;
+
+		if (keys[slot] == empty) {
+			if (++size * 2 > keys.length) {
+				grow();
+				put(key, value);
+				return;
+			}
+			keys[slot] = key;
+		}
+		values[slot] = value;
+	}
+
+	/**
+	 * Remove the mapping of a key.
+	 *
+	 * @param key the key.
+	 * @return the page number it was mapped to, or -1 if it was not mapped.
+	 */
+	public int remove(long key) {
+		int slot = hash(key);
+		while (keys[slot] != key) {
+			if (keys[slot] == empty)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+		int value = values[slot];
+		size--;
+
+		// shift later members of the cluster back instead of leaving a
+		// tombstone behind
+		int hole = slot;
+		for (slot = (slot + 1) & mask; keys[slot] != empty; slot = (slot + 1) & mask) {
+			int home = hash(keys[slot]);
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				keys[hole] = keys[slot];
+				values[hole] = values[slot];
+				hole = slot;
+			}
+		}
+		keys[hole] = empty;
+		return value;
+	}
+
+	/**
+	 * Return the number of mappings in this table.
+	 *
+	 * @return the number of mappings.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	private void allocate(int slots) {
+		keys = new long[slots];
+		values = new int[slots];
+		Arrays.fill(keys, empty);
+		mask = slots - 1;
+		size = 0;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != empty)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	/**
+	 * Check the table against a reference map, and report the cost of a
+	 * lookup compared with the string-keyed <tt>Hashtable</tt> it replaced.
+	 */
+	public static void selfTest() {
+		InvertedPageTable table = new InvertedPageTable(16);
+		Hashtable<String, Integer> reference = new Hashtable<String, Integer>();
+
+		for (int i = 0; i < 5000; i++) {
+			int pid = Lib.random(8), vpn = Lib.random(256);
+			long key = key(pid, vpn);
+			if (Lib.random(3) == 0) {
+				Integer expected = reference.remove(pid + "-" + vpn);
+				Lib.assertTrue(table.remove(key) == (expected == null ? -1 : expected));
+			}
+			else {
+				reference.put(pid + "-" + vpn, i);
+				table.put(key, i);
+			}
+			Lib.assertTrue(table.size() == reference.size());
+		}
+		for (int pid = 0; pid < 8; pid++) {
+			for (int vpn = 0; vpn < 256; vpn++) {
+				Integer expected = reference.get(pid + "-" + vpn);
+				Lib.assertTrue(table.get(key(pid, vpn)) == (expected == null ? -1 : expected));
+			}
+		}
+
+		if (!Lib.test(dbgVM))
+			return;
+
+		final int lookups = 1000000;
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			found += table.get(key(i & 7, i & 255)) >= 0 ? 1 : 0;
+		long packed = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			found += reference.get((i & 7) + "-" + (i & 255)) != null ? 1 : 0;
+		long strings = System.nanoTime() - start;
+
+		System.out.println("InvertedPageTable: " + (packed / lookups)
+				+ " ns per lookup, string-keyed Hashtable " + (strings / lookups)
+				+ " ns (" + found + " hits)");
+	}
+
+	private static final long empty = -1;
+
+	private long[] keys;
+
+	private int[] values;
+
+	private int mask, size;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,139 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * A kernel thread that keeps a reserve of free frames, so that page faults do
+ * not have to evict a page, and wait for it to be written, before they can
+ * continue. The daemon sleeps until the number of free frames falls below a
+ * low watermark. It then writes out the dirty pages that have not been used
+ * recently, and evicts pages chosen by the replacement policy until the
+ * number of free frames reaches a high watermark.
+ *
+ * <p>
+ * The watermarks are read from the <tt>PageDaemon.lowWater</tt> and
+ * <tt>PageDaemon.highWater</tt> keys in <tt>nachos.conf</tt>. A low watermark
+ * of zero disables the daemon.
+ */
+public class PageDaemon implements Runnable {
+	/**
+	 * Allocate a new page daemon and start its thread.
+	 */
+	public PageDaemon() {
+		int numFrames = Machine.processor().getNumPhysPages();
+		lowWater = Config.getInteger("PageDaemon.lowWater", Math.max(1, numFrames/16));
+		highWater = Config.getInteger("PageDaemon.highWater",
+				Math.max(lowWater + 1, numFrames/8));
+		Lib.assertTrue(lowWater >= 0 && lowWater < numFrames);
+		Lib.assertTrue(highWater >= lowWater && highWater < numFrames);
+
+		if (lowWater > 0)
+			new KThread(this).setName("page daemon").fork();
+	}
+
+	/**
+	 * Called after a frame is allocated. Wakes the daemon if free frames have
+	 * fallen below the low watermark.
+	 */
+	public void frameAllocated() {
+		if (!pending && UserKernel.frameAllocator.getNumAvailableFrames() < lowWater) {
+			pending = true;
+			wakeup.V();
+		}
+	}
+
+	/**
+	 * Test whether frames can be taken for something other than a single
+	 * page fault without dipping below the low watermark.
+	 *
+	 * @param frames the number of frames wanted.
+	 * @return <tt>true</tt> if at least <tt>lowWater</tt> frames would still
+	 * be free.
+	 */
+	public boolean hasSpareFrames(int frames) {
+		return UserKernel.frameAllocator.getNumAvailableFrames() - frames >= lowWater;
+	}
+
+	public void run() {
+		while (true) {
+			wakeup.P();
+			numWakeups++;
+			clean();
+			reclaim();
+			pending = false;
+		}
+	}
+
+	/**
+	 * Write out every dirty page that has not been used since the replacement
+	 * policy last looked at it. The pages stay resident, so that a later fault
+	 * can take their frames without writing them.
+	 */
+	private void clean() {
+		VMKernel.lock.acquire();
+		VMKernel.tlbManager.sync();
+		VMKernel.lock.release();
+
+		int numFrames = VMKernel.globalPageTable.length;
+		for (int ppn = 0; ppn < numFrames; ppn++) {
+			VMKernel.lock.acquire();
+			if (VMKernel.isEvictable(ppn) && VMKernel.isDirty(ppn)
+					&& !VMKernel.isUsed(ppn)) {
+				PageInfo info = VMKernel.globalPageTable[ppn];
+				VMKernel.pinnedPages[ppn] = true;
+				info.process.cleanPage(info.entry);
+				VMKernel.pinnedPages[ppn] = false;
+				numCleaned++;
+			}
+			VMKernel.lock.release();
+		}
+
+		VMKernel.lock.acquire();
+		VMKernel.swapManager.flush();
+		VMKernel.lock.release();
+	}
+
+	/**
+	 * Evict pages until the high watermark is reached. The lock is taken for
+	 * one page at a time, so faults are not held up for the whole pass.
+	 */
+	private void reclaim() {
+		while (UserKernel.frameAllocator.getNumAvailableFrames() < highWater) {
+			VMKernel.lock.acquire();
+			int ppn = VMKernel.evictFrame(false);
+			if (ppn != -1)
+				UserKernel.frameAllocator.free(ppn);
+			VMKernel.lock.release();
+
+			if (ppn == -1)
+				break;
+			numReclaimed++;
+		}
+	}
+
+	/**
+	 * Return a summary of what the daemon has done.
+	 *
+	 * @return a string describing the daemon's activity.
+	 */
+	public String toString() {
+		return "page daemon woke " + numWakeups + " times, cleaned "
+				+ numCleaned + " pages, reclaimed " + numReclaimed + " frames";
+	}
+
+	/** Below this many free frames the daemon is woken. */
+	private int lowWater;
+
+	/** The daemon reclaims frames until this many are free. */
+	private int highWater;
+
+	private Semaphore wakeup = new Semaphore(0);
+
+	/** Set while the daemon has been woken and has not finished its pass. */
+	private boolean pending = false;
+
+	private int numWakeups = 0, numCleaned = 0, numReclaimed = 0;
+}
@@ -5,10 +5,12 @@ import nachos.machine.TranslationEntry;
 
 
 public class PageInfo {
-	public PageInfo(int pid, TranslationEntry entry) {
-		this.pid = pid;
+	public PageInfo(VMProcess process, TranslationEntry entry) {
+		this.process = process;
+		this.pid = process.getPID();
 		this.entry = entry;
 	}
+	VMProcess process;
 	int pid;
 	TranslationEntry entry;
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A kernel thread that finds resident pages with identical contents and maps
+ * them all onto one read-only shared frame, freeing the others. A write to a
+ * merged page that was writable raises a read-only exception, and the writer
+ * gets a private copy again.
+ *
+ * <p>
+ * The thread wakes up every <tt>PageMerger.interval</tt> ticks and checksums
+ * every resident page. A page whose checksum has not changed since the last
+ * pass is looked up among the shared frames, and then among the other stable
+ * pages seen in this pass; a match of the full contents merges the two.
+ * Pages that change between passes are left alone, since they would only be
+ * copied back on their next write. The zero frame, which untouched bss and
+ * stack pages are mapped onto, takes part as an ordinary shared frame.
+ *
+ * <p>
+ * Shared frames are never evicted, so pages are merged only while there are
+ * fewer than <tt>PageMerger.maxShared</tt> of them. An interval of zero
+ * disables merging.
+ */
+public class PageMerger implements Runnable {
+	/**
+	 * Allocate a new page merger and start its thread.
+	 */
+	public PageMerger() {
+		int numFrames = Machine.processor().getNumPhysPages();
+		interval = Config.getInteger("PageMerger.interval", 10000);
+		maxShared = Config.getInteger("PageMerger.maxShared", numFrames/4);
+		Lib.assertTrue(interval >= 0 && maxShared >= 0);
+
+		checksums = new int[numFrames];
+		checkedKeys = new long[numFrames];
+		Arrays.fill(checkedKeys, -1);
+
+		if (interval > 0)
+			new KThread(this).setName("page merger").fork();
+	}
+
+	public void run() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+			scan();
+		}
+	}
+
+	/**
+	 * Look at every resident frame once. The lock is taken for one frame at a
+	 * time, so faults are not held up for the whole pass.
+	 */
+	private void scan() {
+		HashMap<Integer, Integer> unstable = new HashMap<Integer, Integer>();
+		numScans++;
+
+		for (int ppn = 0; ppn < checksums.length; ppn++) {
+			VMKernel.lock.acquire();
+			if (VMKernel.isEvictable(ppn) && canMerge(VMKernel.globalPageTable[ppn])) {
+				long key = VMKernel.pageKey(ppn);
+				int sum = checksum(ppn);
+				if (key == checkedKeys[ppn] && sum == checksums[ppn])
+					merge(ppn, sum, unstable);
+				checkedKeys[ppn] = key;
+				checksums[ppn] = sum;
+			}
+			else {
+				checkedKeys[ppn] = -1;
+			}
+			VMKernel.lock.release();
+		}
+	}
+
+	/**
+	 * Merge a stable page into a shared frame with the same contents, or into
+	 * another stable page seen in this pass, which becomes a shared frame.
+	 */
+	private void merge(int ppn, int sum, HashMap<Integer, Integer> unstable) {
+		Integer shared = stable.get(sum);
+		if (shared != null) {
+			if (sameContents(ppn, shared))
+				share(ppn, shared);
+			return;
+		}
+
+		Integer other = unstable.get(sum);
+		if (other == null || other == ppn || !VMKernel.isEvictable(other)
+				|| checkedKeys[other] != VMKernel.pageKey(other)
+				|| !sameContents(ppn, other)) {
+			unstable.put(sum, ppn);
+			return;
+		}
+		if (numShared >= maxShared)
+			return;
+
+		unstable.remove(sum);
+		share(other, -1);
+		frameShared(other);
+		share(ppn, other);
+	}
+
+	/**
+	 * Map the page in a frame onto a shared frame and free the frame, or turn
+	 * the frame itself into a shared frame if <tt>shared</tt> is -1.
+	 */
+	private void share(int ppn, int shared) {
+		PageInfo info = VMKernel.globalPageTable[ppn];
+		VMKernel.unmapFrame(ppn);
+		checkedKeys[ppn] = -1;
+		if (shared == -1) {
+			info.process.sharePage(info.entry, ppn);
+			VMKernel.shareFrame(ppn);
+		}
+		else {
+			info.process.sharePage(info.entry, shared);
+			VMKernel.shareFrame(shared);
+			UserKernel.frameAllocator.free(ppn);
+			numMerged++;
+		}
+	}
+
+	/**
+	 * Add a new shared frame to the frames pages are merged into. Called
+	 * holding <tt>VMKernel.lock</tt>.
+	 *
+	 * @param ppn the shared frame.
+	 */
+	void frameShared(int ppn) {
+		int sum = checksum(ppn);
+		if (!stable.containsKey(sum))
+			stable.put(sum, ppn);
+		numShared++;
+	}
+
+	/**
+	 * Called by the kernel, holding <tt>VMKernel.lock</tt>, when the last page
+	 * mapped onto a shared frame is gone and the frame is about to be freed.
+	 *
+	 * @param ppn the shared frame.
+	 */
+	void frameReleased(int ppn) {
+		int sum = checksum(ppn);
+		Integer shared = stable.get(sum);
+		if (shared != null && shared == ppn)
+			stable.remove(sum);
+		numShared--;
+	}
+
+	/**
+	 * Only the program's own pages are merged. A page of a mapped file must
+	 * be written back to its file, and a page of a superpage would break up
+	 * the superpage.
+	 */
+	private boolean canMerge(PageInfo info) {
+		return info.process.canSharePage(info.entry.vpn);
+	}
+
+	private static int checksum(int ppn) {
+		crc.reset();
+		crc.update(Machine.processor().getMemory(), ppn*pageSize, pageSize);
+		return (int) crc.getValue();
+	}
+
+	private static boolean sameContents(int ppn1, int ppn2) {
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < pageSize; i++) {
+			if (memory[ppn1*pageSize + i] != memory[ppn2*pageSize + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return a summary of what the merger has done.
+	 *
+	 * @return a string describing the merger's activity.
+	 */
+	public String toString() {
+		return "page merger ran " + numScans + " passes, merged " + numMerged
+				+ " pages, " + numShared + " shared frames left";
+	}
+
+	private int interval, maxShared;
+
+	/** The checksum and (pid, vpn) key of each frame at the last pass. */
+	private int[] checksums;
+	private long[] checkedKeys;
+
+	/** Shared frames by checksum. */
+	private HashMap<Integer, Integer> stable = new HashMap<Integer, Integer>();
+
+	private static CRC32 crc = new CRC32();
+
+	private static final int pageSize = Processor.pageSize;
+
+	private int numScans = 0, numMerged = 0, numShared = 0;
+}
@@ -0,0 +1,111 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+import java.util.LinkedList;
+
+/**
+ * A kernel thread that loads pages a process is expected to touch soon, so
+ * that the process keeps running while the pages are read from swap or from
+ * its executable. Processes detect sequential and strided faults themselves
+ * and queue the pages ahead of them here; the thread loads each queued page
+ * into a free frame, and drops the request if no frame can be spared.
+ *
+ * <p>
+ * The most pages a process may have queued after a fault is read from the
+ * <tt>Prefetcher.maxWindow</tt> key in <tt>nachos.conf</tt>. A window of zero
+ * disables prefetching.
+ */
+public class Prefetcher implements Runnable {
+	/**
+	 * Allocate a new prefetcher and start its thread.
+	 */
+	public Prefetcher() {
+		maxWindow = Config.getInteger("Prefetcher.maxWindow", 8);
+		Lib.assertTrue(maxWindow >= 0);
+
+		if (maxWindow > 0)
+			new KThread(this).setName("prefetcher").fork();
+	}
+
+	/**
+	 * Queue a page to be loaded. Called with <tt>VMKernel.lock</tt> held.
+	 *
+	 * @param process the process that owns the page.
+	 * @param vpn the virtual page number.
+	 */
+	public void request(VMProcess process, int vpn) {
+		Lib.assertTrue(VMKernel.lock.isHeldByCurrentThread());
+		if (maxWindow == 0 || requests.size() >= maxQueued)
+			return;
+		requests.add(new Request(process, vpn));
+		ready.V();
+	}
+
+	/**
+	 * Return the largest number of pages to queue ahead of a fault.
+	 *
+	 * @return the largest prefetch window.
+	 */
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+
+	public void run() {
+		while (true) {
+			ready.P();
+			VMKernel.lock.acquire();
+			Request request = requests.removeFirst();
+			if (request.process.prefetchPage(request.vpn))
+				numPrefetched++;
+			VMKernel.lock.release();
+		}
+	}
+
+	/**
+	 * Record that a prefetched page was touched before it was evicted.
+	 */
+	void hit() {
+		numHits++;
+	}
+
+	/**
+	 * Record that a prefetched page was evicted without being touched.
+	 */
+	void miss() {
+		numWasted++;
+	}
+
+	/**
+	 * Return a summary of what the prefetcher has done.
+	 *
+	 * @return a string describing the prefetcher's activity.
+	 */
+	public String toString() {
+		return "prefetched " + numPrefetched + " pages, " + numHits
+				+ " used, " + numWasted + " evicted unused";
+	}
+
+	private static class Request {
+		Request(VMProcess process, int vpn) {
+			this.process = process;
+			this.vpn = vpn;
+		}
+
+		VMProcess process;
+		int vpn;
+	}
+
+	private int maxWindow;
+
+	/** Pages not yet loaded; guarded by <tt>VMKernel.lock</tt>. */
+	private LinkedList<Request> requests = new LinkedList<Request>();
+
+	private static final int maxQueued = 64;
+
+	private Semaphore ready = new Semaphore(0);
+
+	private int numPrefetched = 0, numHits = 0, numWasted = 0;
+}
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which resident page to evict when a page fault finds no free frame.
+ * The VM kernel tells the policy whenever a frame starts or stops holding a
+ * page, and asks it for a victim when it needs a frame. The policy in use is
+ * named by the <tt>VMKernel.replacementPolicy</tt> key in <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Policies learn about references through the used and dirty bits of the
+ * resident pages, which they read with <tt>VMKernel.isUsed()</tt> and
+ * <tt>VMKernel.isDirty()</tt>, and clear with <tt>VMKernel.clearUsed()</tt>.
+ * All methods are called with <tt>VMKernel.lock</tt> held.
+ *
+ * @see nachos.vm.VMKernel
+ */
+public interface ReplacementPolicy {
+	/**
+	 * Called when a frame starts holding a page.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void frameMapped(int ppn);
+
+	/**
+	 * Called when a frame stops holding a page, whether it was evicted or
+	 * released.
+	 *
+	 * @param ppn the physical page number.
+	 */
+	public void frameUnmapped(int ppn);
+
+	/**
+	 * Choose a resident, unpinned frame to evict.
+	 *
+	 * @return the physical page number of the victim, or -1 if every
+	 * resident frame is pinned.
+	 */
+	public int selectVictim();
+}
@@ -1,83 +1,282 @@
 package nachos.vm;
 
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import nachos.threads.ThreadedKernel;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.vm.*;
 
+/**
+ * Manages swap space. Swap lives on the machine's swap device when it has
+ * one (<tt>Machine.swapDevice</tt> in <tt>nachos.conf</tt>), and otherwise in
+ * a file of the stub file system. Slots are tracked in a bitmap, and the pages of a
+ * process are placed next to each other where possible. Evicted pages are
+ * gathered into a cluster of consecutive slots that goes to the swap file in
+ * a single write, and a swap-in reads the slots that follow along with the one
+ * it needs, so that neighbouring pages can be brought back without touching
+ * the file again.
+ *
+ * <p>
+ * In front of the file sits a pool of compressed pages, limited to
+ * <tt>SwapManager.poolBytes</tt> bytes of kernel memory. An evicted page that
+ * compresses well goes to the pool; when the pool is full, its oldest pages
+ * are written to the file to make room. A page read back from the pool leaves
+ * it, so the page has no copy in swap and must be written out again when it
+ * is evicted.
+ */
 public class SwapManager {
 
 	public SwapManager() {
-		swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
-		byte[] buf = new byte[Processor.pageSize];
+		if (Machine.swapDevice() != null)
+			swapDevice = new SynchSwapDevice(Machine.swapDevice());
+		else
+			swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+		clusterPages = Config.getInteger("SwapManager.clusterPages", 8);
+		readAheadPages = Config.getInteger("SwapManager.readAheadPages", 4);
+		cluster = new byte[clusterPages*pageSize];
+		readAhead = new byte[readAheadPages*pageSize];
+		poolLimit = Config.getInteger("SwapManager.poolBytes", 8192);
 	}
 
-	public PageInfo getPhysPageToSwap(){
-		boolean pinned;
-		int ppn;
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		for(int i = 0; i < numPhysPages;i++){
-			ppn = (i+swapPointer)%Processor.pageSize;
-			pinned = VMKernel.pinnedPages.contains(ppn);
-			if(!pinned) {
-				swapPointer = ppn+1;
-				return VMKernel.globalPageTable[ppn];
+	//Write a page out to swap, compressed into the pool if it fits
+	public void swapIn(PageInfo pageInfo){
+		int pid = pageInfo.pid, vpn = pageInfo.entry.vpn;
+		byte[] memory = Machine.processor().getMemory();
+		VMKernel.numSwapWrites++;
+
+		if(poolLimit > 0){
+			deflater.reset();
+			deflater.setInput(memory, pageInfo.entry.ppn*pageSize, pageSize);
+			deflater.finish();
+			int length = deflater.deflate(compressBuffer);
+			//Pages that barely compress are not worth the pool space
+			if(deflater.finished() && length <= pageSize*3/4){
+				long key = InvertedPageTable.key(pid, vpn);
+				byte[] old = pool.remove(key);
+				if(old != null)poolBytes -= old.length;
+				pool.put(key, Arrays.copyOf(compressBuffer, length));
+				poolBytes += length;
+				numPoolStores++;
+				compressedBytes += length;
+				trimPool();
+				return;
 			}
 		}
-		return null;
+		byte[] old = pool.remove(InvertedPageTable.key(pid, vpn));
+		if(old != null)poolBytes -= old.length;
+		writePage(pid, vpn, memory, pageInfo.entry.ppn*pageSize);
+	}
+
+	//Write the oldest pages of the pool to the file until it is within budget
+	private void trimPool(){
+		Iterator<Map.Entry<Long, byte[]>> i = pool.entrySet().iterator();
+		while(poolBytes > poolLimit){
+			Map.Entry<Long, byte[]> oldest = i.next();
+			i.remove();
+			poolBytes -= oldest.getValue().length;
+			inflate(oldest.getValue(), pageBuffer, 0);
+			long key = oldest.getKey();
+			writePage((int) (key >>> 32), (int) key, pageBuffer, 0);
+			numPoolWritebacks++;
+		}
 	}
 
-	//Return a clean translation entry
-	public TranslationEntry swapIn(PageInfo pageInfo){
-		int spn = getFreeSPN();
-		VMKernel.PageTableKey key = new VMKernel.PageTableKey(pageInfo.pid, pageInfo.entry.vpn);
-		swapTable.put(key.toString(), pageInfo.entry);
-		swapFile.write(spn*Processor.pageSize, getPageContent(pageInfo.entry.ppn), 0, Processor.pageSize);
-		TranslationEntry te = new TranslationEntry(-1, pageInfo.entry.ppn, true, false, false, false);
-		VMKernel.globalPageTable[pageInfo.entry.ppn] = null;
-		return te;
+	private void inflate(byte[] compressed, byte[] page, int offset){
+		inflater.reset();
+		inflater.setInput(compressed);
+		try{
+			Lib.assertTrue(inflater.inflate(page, offset, pageSize) == pageSize);
+		}catch(DataFormatException e){
+			Lib.assertNotReached("corrupt page in swap pool");
+		}
 	}
 
-	public TranslationEntry releaseSPN(int vpn, int pid){	
-		VMKernel.PageTableKey key = new VMKernel.PageTableKey(pid, vpn);
-		TranslationEntry te = swapTable.get(key.toString());
-		swapTable.remove(key.toString());
-		return te;
+	//Write a page to the file, reusing the slot of an earlier copy
+	private void writePage(int pid, int vpn, byte[] data, int offset){
+		long key = InvertedPageTable.key(pid, vpn);
+		int spn = swapTable.get(key);
+		if(spn == -1){
+			spn = getFreeSPN(pid, vpn);
+			swapTable.put(key, spn);
+		}
+
+		//Extend the pending cluster, or start a new one
+		if(clusterCount == 0 || spn != clusterFirst + clusterCount || clusterCount == clusterPages){
+			flush();
+			clusterFirst = spn;
+		}
+		System.arraycopy(data, offset, cluster, clusterCount*pageSize, pageSize);
+		clusterCount++;
+
+		//The read-ahead copy of this slot is stale now
+		if(spn >= readAheadFirst && spn < readAheadFirst + readAheadCount)
+			readAheadCount = 0;
 	}
 
-	public byte[] retrieveSwapPage(int vpn, int pid){
-		VMKernel.PageTableKey key = new VMKernel.PageTableKey(pid, vpn);
-		TranslationEntry te = swapTable.get(key.toString());
-		byte[] res = new byte[Processor.pageSize];
-		swapFile.read(te.vpn*Processor.pageSize, res, 0, Processor.pageSize);
-		return res;
+	/**
+	 * Write the pending cluster to the swap file.
+	 */
+	public void flush(){
+		if(clusterCount == 0)return;
+		if(swapDevice != null)
+			swapDevice.writePages(clusterFirst, clusterCount, cluster, 0);
+		else
+			swapFile.write(clusterFirst*pageSize, cluster, 0, clusterCount*pageSize);
+		numSwapIOs++;
+		Lib.debug(dbgVM, "wrote " + clusterCount + " swap pages at " + clusterFirst);
+		clusterCount = 0;
 	}
 
-	private int getFreeSPN(){
-		int spn = freeSwapPages.poll();
-		if(freeSwapPages.size()==0)spn = swapTable.keySet().size();
+	public int releaseSPN(int vpn, int pid){
+		byte[] compressed = pool.remove(InvertedPageTable.key(pid, vpn));
+		if(compressed != null)poolBytes -= compressed.length;
+		int spn = swapTable.remove(InvertedPageTable.key(pid, vpn));
+		if(spn != -1)usedSlots.clear(spn);
 		return spn;
 	}
 
-	private static byte[] getPageContent(int ppn){
-   		byte[] res = new byte[Processor.pageSize];
-		System.arraycopy(Machine.processor().getMemory(),ppn*Processor.pageSize, res, 0, ppn*Processor.pageSize);
-		return res;
-  	}
+	/**
+	 * Test whether swap holds a current copy of a page.
+	 */
+	public boolean hasCopy(int vpn, int pid){
+		long key = InvertedPageTable.key(pid, vpn);
+		return pool.containsKey(key) || swapTable.get(key) != -1;
+	}
+
+	//Read a page back from swap into a physical page
+	public boolean retrieveSwapPage(int vpn, int pid, int ppn){
+		long key = InvertedPageTable.key(pid, vpn);
+		byte[] memory = Machine.processor().getMemory();
+		byte[] compressed = pool.remove(key);
+		if(compressed != null){
+			//The page leaves the pool, and any older copy in the file is stale
+			poolBytes -= compressed.length;
+			inflate(compressed, memory, ppn*pageSize);
+			int spn = swapTable.remove(key);
+			if(spn != -1)usedSlots.clear(spn);
+			VMKernel.numSwapReads++;
+			numPoolHits++;
+			return true;
+		}
+
+		int spn = swapTable.get(key);
+		if(spn == -1)return false;
+		VMKernel.numSwapReads++;
+
+		if(spn >= clusterFirst && spn < clusterFirst + clusterCount){
+			System.arraycopy(cluster, (spn - clusterFirst)*pageSize, memory, ppn*pageSize, pageSize);
+			return true;
+		}
+
+		if(spn < readAheadFirst || spn >= readAheadFirst + readAheadCount){
+			//Read this slot and the ones after it that are in use
+			int count = 1;
+			while(count < readAheadPages && usedSlots.get(spn + count)
+					&& (spn + count < clusterFirst || spn + count >= clusterFirst + clusterCount))
+				count++;
+			readAheadFirst = spn;
+			if(swapDevice != null){
+				swapDevice.readPages(spn, count, readAhead, 0);
+				readAheadCount = count;
+			}else{
+				int read = swapFile.read(spn*pageSize, readAhead, 0, count*pageSize);
+				readAheadCount = Math.max(read, 0) / pageSize;
+			}
+			numSwapIOs++;
+			Lib.assertTrue(readAheadCount > 0, "swap read failed");
+		}
+		System.arraycopy(readAhead, (spn - readAheadFirst)*pageSize, memory, ppn*pageSize, pageSize);
+		return true;
+	}
+
+	/**
+	 * Choose a slot for a page: right after the slot of the page before it if
+	 * that is free, otherwise the next free slot after the last one given to
+	 * the process.
+	 */
+	private int getFreeSPN(int pid, int vpn){
+		int spn = -1;
+		int previous = swapTable.get(InvertedPageTable.key(pid, vpn - 1));
+		if(previous != -1 && !usedSlots.get(previous + 1))
+			spn = previous + 1;
+		if(spn == -1){
+			Integer cursor = cursors.get(pid);
+			spn = usedSlots.nextClearBit(cursor == null ? 0 : cursor);
+		}
+		Lib.assertTrue(swapDevice == null || spn < swapDevice.getNumPages(), "out of swap space");
+		usedSlots.set(spn);
+		cursors.put(pid, spn + 1);
+		return spn;
+	}
 
 	public void close() {
+		if(swapFile == null)return;
 		swapFile.close();
 		ThreadedKernel.fileSystem.remove(swapFileName);
 	}
 
-	public TranslationEntry find(VMKernel.PageTableKey key){
-		return swapTable.get(key.toString());
+	/**
+	 * Forget the placement hint of a process that has exited.
+	 */
+	public void release(int pid) {
+		cursors.remove(pid);
+	}
+
+	public int find(int pid, int vpn){
+		return swapTable.get(InvertedPageTable.key(pid, vpn));
+	}
+
+	/**
+	 * Return a summary of the compressed pool's activity.
+	 *
+	 * @return a string describing the pool.
+	 */
+	public String toString(){
+		int reads = numPoolHits + numFileReads();
+		return "swap pool served " + numPoolHits + " of " + reads
+				+ " swap reads, stored " + numPoolStores + " pages at "
+				+ (numPoolStores == 0 ? 0 : compressedBytes*100/((long) numPoolStores*pageSize))
+				+ "% of their size, saved " + ((long) numPoolStores*pageSize - compressedBytes)
+				+ " bytes, wrote back " + numPoolWritebacks;
+	}
+
+	private int numFileReads(){
+		return VMKernel.numSwapReads - numPoolHits;
 	}
 
-	private static final String swapFileName = "/SWAP";
+	/** The number of reads and writes issued to the swap file. */
+	public int numSwapIOs = 0;
+
+	private static final String swapFileName = "SWAP";
+	private static final int pageSize = Processor.pageSize;
+	private static final char dbgVM = 'v';
 	private OpenFile swapFile;
-	private PriorityQueue<Integer> freeSwapPages = new PriorityQueue<Integer>();
-	private static Hashtable<String, TranslationEntry>  swapTable = new Hashtable<String, TranslationEntry>();
-	private static int swapPointer = 0;
+	private SynchSwapDevice swapDevice;
+	/** The swap slots in use. */
+	private BitSet usedSlots = new BitSet();
+	/** Where to look for the next free slot of each process. */
+	private HashMap<Integer, Integer> cursors = new HashMap<Integer, Integer>();
+	/** The swap page holding each swapped out page, by (pid, vpn). */
+	private InvertedPageTable swapTable = new InvertedPageTable(64);
+
+	private int clusterPages, readAheadPages;
+	/** Evicted pages not yet written, for slots clusterFirst onwards. */
+	private byte[] cluster;
+	private int clusterFirst = 0, clusterCount = 0;
+	/** Slots read ahead of need, from readAheadFirst onwards. */
+	private byte[] readAhead;
+	private int readAheadFirst = 0, readAheadCount = 0;
+
+	/** Compressed pages by (pid, vpn), oldest first. */
+	private LinkedHashMap<Long, byte[]> pool = new LinkedHashMap<Long, byte[]>();
+	private int poolLimit, poolBytes = 0;
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private Inflater inflater = new Inflater();
+	private byte[] compressBuffer = new byte[pageSize];
+	private byte[] pageBuffer = new byte[pageSize];
+	private int numPoolStores = 0, numPoolHits = 0, numPoolWritebacks = 0;
+	private long compressedBytes = 0;
 }
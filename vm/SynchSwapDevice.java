@@ -0,0 +1,84 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.vm.*;
+
+/**
+ * Provides a simple, synchronized interface to the machine's swap device. A
+ * read blocks the calling thread until its pages arrive, letting other
+ * threads run meanwhile. A write only waits for the device to be free: the
+ * device takes the data when the request is issued, so the caller goes on
+ * while the pages are written.
+ */
+public class SynchSwapDevice {
+	/**
+	 * Allocate a new <tt>SynchSwapDevice</tt>.
+	 *
+	 * @param device the underlying swap device.
+	 */
+	public SynchSwapDevice(SwapDevice device) {
+		this.device = device;
+
+		device.setInterruptHandler(new Runnable() {
+			public void run() {
+				requestDone();
+			}
+		});
+	}
+
+	/**
+	 * Return the number of pages on the device.
+	 *
+	 * @return the size of the device, in pages.
+	 */
+	public int getNumPages() {
+		return device.getNumPages();
+	}
+
+	/**
+	 * Read consecutive pages, blocking until they have arrived.
+	 *
+	 * @param spn the first page on the device.
+	 * @param count the number of pages.
+	 * @param data the buffer to read into.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void readPages(int spn, int count, byte[] data, int offset) {
+		idle.P();
+		reading = true;
+		device.readPages(spn, count, data, offset);
+		readDone.P();
+	}
+
+	/**
+	 * Write consecutive pages. Returns as soon as the device has taken the
+	 * data, without waiting for the write to complete.
+	 *
+	 * @param spn the first page on the device.
+	 * @param count the number of pages.
+	 * @param data the buffer to write from.
+	 * @param offset the offset in <tt>data</tt> of the first byte.
+	 */
+	public void writePages(int spn, int count, byte[] data, int offset) {
+		idle.P();
+		device.writePages(spn, count, data, offset);
+	}
+
+	private void requestDone() {
+		if (reading) {
+			reading = false;
+			readDone.V();
+		}
+		idle.V();
+	}
+
+	private SwapDevice device;
+
+	/** Held from the time a request is issued until it completes. */
+	private Semaphore idle = new Semaphore(1);
+
+	private Semaphore readDone = new Semaphore(0);
+
+	private boolean reading = false;
+}
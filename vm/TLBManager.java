@@ -2,62 +2,260 @@ package nachos.vm;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Processor;
 import nachos.machine.TranslationEntry;
 import nachos.vm.*;
+import java.util.Arrays;
 
+/**
+ * Manages the TLB and the address space identifiers that tag its entries.
+ * Each process is given an ASID the first time it runs, so its entries can
+ * stay in the TLB while other processes run. ASIDs are handed out in
+ * generations: when every ASID of the current generation is taken, the TLB
+ * is flushed and a new generation starts, and each process picks up a fresh
+ * ASID the next time it runs. ASID 0 is never given out.
+ *
+ * <p>
+ * The used and dirty bits the processor sets in a TLB entry are merged into
+ * the entry of its owner whenever the TLB entry is replaced or invalidated,
+ * and by <tt>sync()</tt>.
+ *
+ * <p>
+ * A new entry goes into the set that maps its page. Within the set, an
+ * invalid entry is taken first, then the next entry not used since the set
+ * was last swept (not recently used). When every entry of the set has been
+ * used, their used bits are cleared and the sweep starts again.
+ *
+ * <p>
+ * A superpage entry covers several pages of its owner. Its used and dirty
+ * bits are merged into every page it covers.
+ *
+ * <p>
+ * A processor that walks page tables loads most entries itself, from the
+ * table each process sets on a context switch, and only misses on pages
+ * that are not resident reach this manager. The bits of entries the walker
+ * loads are merged the same way, since they carry the ASID of their owner.
+ */
 public class TLBManager {
 
-	public TLBManager(){}	
+	public TLBManager(){
+		Processor processor = Machine.processor();
+		owners = new VMProcess[processor.getNumASIDs()];
+		hands = new int[processor.getTLBSize() / processor.getTLBWays()];
+	}
 
-	public void add(TranslationEntry entry) {
-		System.out.println("Add new entry to TLB: vpn = " + entry.vpn);
-		int index = -1;
+	/**
+	 * Switch the TLB to a process, giving it an ASID if it has none in the
+	 * current generation.
+	 */
+	public void activate(VMProcess process){
+		if(process.asidGeneration != generation){
+			if(nextASID == owners.length){
+				//Every ASID is taken, so start a new generation
+				sync();
+				clear();
+				Arrays.fill(owners, null);
+				nextASID = 1;
+				generation++;
+				numRollovers++;
+			}
+			process.asid = nextASID++;
+			process.asidGeneration = generation;
+			owners[process.asid] = process;
+		}
+		Machine.processor().setASID(process.asid);
+	}
+
+	/**
+	 * Drop the entries of a process that is exiting. Its ASID is not reused
+	 * until the next generation.
+	 */
+	public void release(VMProcess process){
+		int asid = asidOf(process);
+		if(asid == -1)return;
 		for(int i = 0; i < Machine.processor().getTLBSize();i++){
-			if (!Machine.processor().readTLBEntry(i).valid) {
+			Machine.processor().readTLBEntry(i, probe);
+			if(probe.valid && probe.asid == asid)invalid(i);
+		}
+		owners[asid] = null;
+	}
+
+	/**
+	 * Load an entry of the current process into the TLB. Entries are read
+	 * and written through <tt>probe</tt> and <tt>tagged</tt>, so a TLB miss
+	 * allocates nothing.
+	 *
+	 * @return <tt>true</tt> if a valid entry had to be replaced.
+	 */
+	public boolean add(TranslationEntry entry) {
+		Processor processor = Machine.processor();
+		int ways = processor.getTLBWays();
+		int set = processor.getTLBSet(entry.vpn, entry.pages);
+		int first = set * ways;
+
+		int index = -1;
+		for(int i = first; i < first + ways; i++){
+			processor.readTLBEntry(i, probe);
+			if(!probe.valid){
 				index = i;
 				break;
 			}
 		}
-		if(index == -1)index = Lib.random(Machine.processor().getTLBSize());
-		System.out.println("Add this tlb entry to index " + index);
-		Machine.processor().writeTLBEntry(index, entry);
+
+		boolean replaced = (index == -1);
+		if(replaced){
+			for(int i = 0; i < ways; i++){
+				int way = first + (hands[set] + i) % ways;
+				processor.readTLBEntry(way, probe);
+				if(!probe.used){
+					index = way;
+					break;
+				}
+			}
+			if(index == -1){
+				//Every entry of the set was used, so start a new sweep
+				for(int i = first; i < first + ways; i++){
+					processor.readTLBEntry(i, probe);
+					mergeBits(probe);
+					probe.used = false;
+					processor.writeTLBEntry(i, probe);
+				}
+				index = first + hands[set];
+			}
+			hands[set] = (index - first + 1) % ways;
+			//Keep the used and dirty bits of the entry being replaced
+			processor.readTLBEntry(index, probe);
+			mergeBits(probe);
+		}
+
+		tagged.set(entry);
+		tagged.asid = processor.getASID();
+		processor.writeTLBEntry(index, tagged);
+		return replaced;
 	}
 
 	public void invalid(int index){
-		TranslationEntry entry = Machine.processor().readTLBEntry(index);
-		entry.valid = false;
-		Machine.processor().writeTLBEntry(index, entry);
+		Machine.processor().readTLBEntry(index, probe);
+		probe.valid = false;
+		Machine.processor().writeTLBEntry(index, probe);
 	}
 
-	public void updateGlobalInvertedPageTable(int pid){
-		TranslationEntry entry;
+	//Merge the used and dirty bits of every entry into its owner's entry
+	public void sync(){
 		for(int i = 0; i < Machine.processor().getTLBSize();i++){
-			entry = Machine.processor().readTLBEntry(i);
-			if(entry.valid){
-				VMKernel.PageTableKey key = new VMKernel.PageTableKey(pid, entry.vpn);
-				TranslationEntry te = VMKernel.invertedPageTable.get(key.toString());
-				if(te!=null){
-					te.dirty = entry.dirty || te.dirty;
-					te.readOnly = te.readOnly||entry.readOnly;
-				}
+			Machine.processor().readTLBEntry(i, probe);
+			mergeBits(probe);
+		}
+	}
+
+	private void mergeBits(TranslationEntry entry){
+		if(!entry.valid)return;
+		VMProcess owner = owners[entry.asid];
+		if(owner == null)return;
+		for(int i = 0; i < entry.pages; i++){
+			TranslationEntry te = VMKernel.getEntry(owner.getPID(), entry.vpn + i);
+			if(te!=null && te.ppn == entry.ppn + i){
+				te.dirty = entry.dirty || te.dirty;
+				te.used = entry.used || te.used;
 			}
 		}
 	}
 
 	public TranslationEntry find(int vpn, boolean isWrite) {
-		for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			if (entry.valid && entry.vpn == vpn) {
-				if (entry.readOnly && isWrite)//We can not write to a read-only page
-					return null;
-				entry.dirty = entry.dirty || isWrite;
-				entry.used = true;
-				Machine.processor().writeTLBEntry(i, entry);
-				return entry;
-			}
+		int i = indexOf(Machine.processor().getASID(), vpn);
+		if (i == -1)
+			return null;
+		TranslationEntry entry = Machine.processor().readTLBEntry(i);
+		if (entry.readOnly && isWrite)//We can not write to a read-only page
+			return null;
+		entry.dirty = entry.dirty || isWrite;
+		entry.used = true;
+		Machine.processor().writeTLBEntry(i, entry);
+		return entry;
+	}
+
+	//Invalidate the entry for a page that is leaving physical memory,
+	//keeping its used and dirty bits
+	public void invalidVPN(VMProcess process, int vpn){
+		int index = indexOf(process, vpn);
+		if(index != -1){
+			Machine.processor().readTLBEntry(index, probe);
+			mergeBits(probe);
+			invalid(index);
+		}
+	}
+
+	//Clear the used bit of a page so replacement sees its next reference
+	public void clearUsed(VMProcess process, int vpn){
+		int index = indexOf(process, vpn);
+		if(index != -1){
+			Machine.processor().readTLBEntry(index, probe);
+			mergeBits(probe);
+			probe.used = false;
+			Machine.processor().writeTLBEntry(index, probe);
+		}
+	}
+
+	//Clear the dirty bit of a page that has just been written out
+	public void clearDirty(VMProcess process, int vpn){
+		int index = indexOf(process, vpn);
+		if(index != -1){
+			Machine.processor().readTLBEntry(index, probe);
+			mergeBits(probe);
+			probe.dirty = false;
+			Machine.processor().writeTLBEntry(index, probe);
+		}
+	}
+
+	public void clear(){
+		for(int i = 0; i < Machine.processor().getTLBSize();i++)invalid(i);
+	}
+
+	/**
+	 * Return the number of times the ASIDs ran out and the TLB was flushed.
+	 */
+	public int getNumRollovers(){
+		return numRollovers;
+	}
+
+	private int indexOf(VMProcess process, int vpn){
+		int asid = asidOf(process);
+		return (asid == -1) ? -1 : indexOf(asid, vpn);
+	}
+
+	//The entry mapping a page, which may be a superpage entry
+	private int indexOf(int asid, int vpn){
+		int index = indexOf(asid, vpn, 1);
+		int superPageSize = Machine.processor().getSuperPageSize();
+		if(index == -1 && superPageSize > 1)
+			index = indexOf(asid, vpn & ~(superPageSize - 1), superPageSize);
+		return index;
+	}
+
+	private int indexOf(int asid, int vpn, int pages){
+		Processor processor = Machine.processor();
+		int first = processor.getTLBSet(vpn, pages) * processor.getTLBWays();
+		for(int i = first; i < first + processor.getTLBWays();i++){
+			processor.readTLBEntry(i, probe);
+			if(probe.valid && probe.vpn == vpn && probe.pages == pages
+					&& probe.asid == asid)return i;
 		}
-		return null;
+		return -1;
+	}
+
+	//The ASID of a process, or -1 if it has none in this generation
+	private int asidOf(VMProcess process){
+		return (process.asidGeneration == generation) ? process.asid : -1;
 	}
 
-	public void clear(){}
+	/** The process each ASID of the current generation was given to. */
+	private VMProcess[] owners;
+	private int nextASID = 1;
+	private int generation = 1;
+	private int numRollovers = 0;
+	/** Where the not-recently-used sweep of each set resumes. */
+	private int[] hands;
+	/** Scratch entries for reading the TLB and for filling it. */
+	private TranslationEntry probe = new TranslationEntry(),
+			tagged = new TranslationEntry();
 }
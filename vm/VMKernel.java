@@ -23,14 +23,25 @@ public class VMKernel extends UserKernel {
     public void initialize(String[] args) {
         super.initialize(args);
         lock = new Lock();
+        pinnedPages = new boolean[Machine.processor().getNumPhysPages()];
         swapManager = new SwapManager();
         tlbManager = new TLBManager();
+        policy = (ReplacementPolicy) Lib.constructObject(Config.getString(
+                "VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+        pageDaemon = new PageDaemon();
+        prefetcher = new Prefetcher();
+        shareCounts = new int[Machine.processor().getNumPhysPages()];
+        pageMerger = new PageMerger();
+        workingSets = new WorkingSetManager();
     }
 
     /**
      * Test this kernel.
      */
-    public void selfTest() {super.selfTest();}
+    public void selfTest() {
+        super.selfTest();
+        InvertedPageTable.selfTest();
+    }
 
     /**
      * Start running user programs.
@@ -40,187 +51,281 @@ public class VMKernel extends UserKernel {
     /**
      * Terminate this kernel. Never returns.
      */
-    public void terminate() {super.terminate();}
-
-    // public static int acquirePage(int pid){
-    //  System.out.println("VMKernel.acquirePage() pid = " + pid + " free page size = "+ freePages.size());
-    //  int pageId = -1;
-    //  freePagesLock.acquire();
-    //  if(freePages.peek()!=null){
-    //      pageId = freePages.poll().ppn;
-    //  }
-    //  freePagesLock.release();
-    //  if(pageId != -1){
-    //       return pageId;
-    //  }
-    //  pageId = swapManager.getPhysPageToSwap();
-    //  acquirePage(pid, pageId);   
-    //  System.out.println("acquirePage() calls swap()  returns " + pageId + "\n");
-    //  return pageId;
-    // }
-    
-
-    // public static void acquirePage(int pid, int ppn){
-    //  //If the content that is stored in ppn is valid, we need to save that content onto swap space
-    //  byte[] buff = new byte[Processor.pageSize];
-    //  swapManager.swapOut(ppn,buff);
-    //  if(invertedPageTable[ppn].entry.valid){
-    //      swapManager.swapIn(ppn, getPageContent(ppn));
-    //  }
-    // }
-
-    //load a page from free page table
-    public static TranslationEntry loadPage(int pid, int vpn) {
-        System.out.println("VMKernel.loadPage() pid = " + pid + " vpn = " + vpn);
-        lock.acquire();              
-        PageTableKey key = new VMKernel.PageTableKey(pid, vpn);
-        TranslationEntry te = null;
-        if(freePages.peek()!=null){
-            te = freePages.poll();
-            te.valid = true;
-            
-        }else{
-            PageInfo info = swapManager.getPhysPageToSwap();
-            te = swapManager.swapIn(info);
-            te.vpn = vpn;
-            te.valid = true;
-            
-        }
-        invertedPageTable.put(key.toString(), te);
-        globalPageTable[te.ppn] = new PageInfo(pid, te);
-        //if(te != null) return te;
-
-        // if(getAvailablePages()>0) {
-        //     te = acquirePage();
-        //     invertedPageTable.put(key.toString(), te);
-        // }else {
-        //     loadPageFromSwap(pid, vpn);
-        // }
-        // te = invertedPageTable.get(key.toString());
-        // Lib.debug(dbgVM, "Loaded page: " + pid + ", " + vpn + " TE:" + te);
-        lock.release();
-        System.out.println("VMKernel.loadPage() finished");
-        return te;
-    }
-
-    public static void unloadPage(int pid, int vpn) {       
-        PageTableKey key = new VMKernel.PageTableKey(pid, vpn);        
-        TranslationEntry te = invertedPageTable.get(key.toString());
-        if (te != null) {
-            releasePage(te);
-            invertedPageTable.remove(key);    
-        }        
-    }
-
-
-    public static TranslationEntry loadPageFromSwap(int pid, int vpn, int ppn) {
-        lock.acquire();              
-        PageTableKey key = new VMKernel.PageTableKey(pid, vpn);
-        TranslationEntry te = swapManager.find(key);
-        te.ppn = ppn;
-        globalPageTable[ppn] = new PageInfo(pid, te);
-        invertedPageTable.put(key.toString(), te);
-        lock.release();
-        return te;
-    }
-
-    public static TranslationEntry getEntry(int pid, int vpn) {        
-        PageTableKey key = new VMKernel.PageTableKey(pid, vpn);        
-        TranslationEntry te = invertedPageTable.get(key.toString());
-        if (te == null) {
-            //Search in swapfile
-           te = swapManager.find(key);
+    public void terminate() {
+        System.out.println("VM: page faults " + numPageFaults + ", swap reads "
+                + numSwapReads + ", swap writes " + numSwapWrites
+                + ", swap I/Os " + swapManager.numSwapIOs);
+        System.out.println("VM: " + pageDaemon + "; " + numStalls + " of "
+                + numPageFaults + " faults stalled, " + numDirtyStalls
+                + " on a dirty victim");
+        System.out.println("VM: " + prefetcher);
+        System.out.println("VM: " + swapManager);
+        System.out.println("VM: TLB flushed " + tlbManager.getNumRollovers()
+                + " times to recycle ASIDs");
+        System.out.println("VM: promoted " + numPromotions
+                + " superpages, demoted " + numDemotions);
+        System.out.println("VM: " + pageMerger + "; " + numZeroMaps
+                + " zero page mappings, " + numCopiesOnWrite
+                + " copies on write, at most " + peakFrames + " frames in use");
+        System.out.println("VM: stacks grew by " + numStackGrowths + " pages");
+        if (numResidentMisses > 0)
+            System.out.println("VM: " + numResidentMisses
+                    + " TLB misses on resident pages took "
+                    + residentMissNanos / numResidentMisses + " ns each");
+        System.out.println("VM: " + workingSets);
+        swapManager.close();
+        super.terminate();
+    }
+
+    /**
+     * Find a physical page for a page that is being faulted in, evicting a
+     * resident page if no page is free. Wakes the page daemon if free pages
+     * are running low. The caller must hold <tt>lock</tt>.
+     *
+     * @return the physical page number.
+     */
+    public static int acquireFrame() {
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        int ppn = frameAllocator.allocate();
+        if (ppn == -1) {
+            // the daemon fell behind, so this fault pays for the eviction
+            numStalls++;
+            ppn = evictFrame(true);
+            Lib.assertTrue(ppn != -1, "every physical page is pinned");
         }
-        return te;
+        pageDaemon.frameAllocated();
+        return ppn;
+    }
+
+    /**
+     * Evict the page chosen by the replacement policy. The caller must hold
+     * <tt>lock</tt>.
+     *
+     * @param stall <tt>true</tt> if a page fault is waiting for the frame.
+     * @return the physical page number of the frame, which is no longer
+     * mapped but still allocated, or -1 if every resident page is pinned.
+     */
+    static int evictFrame(boolean stall) {
+        // the policy needs the used and dirty bits the TLB has collected
+        tlbManager.sync();
+
+        int ppn = policy.selectVictim();
+        if (ppn != -1)
+            evictFrame(ppn, stall);
+        return ppn;
     }
 
-    public static TranslationEntry setEntry(int pid, int vpn, int ppn) {
-        lock.acquire();
-        PageTableKey key = new PageTableKey(pid, vpn);        
-        TranslationEntry newTe = new TranslationEntry(vpn, ppn, true, false, true, false);
-        newTe.ppn = ppn;
-        invertedPageTable.put(key.toString(), newTe);
-        lock.release();
-        return newTe;
+    /**
+     * Evict the page in a resident, unpinned frame. The frame is no longer
+     * mapped but still allocated. The caller must hold <tt>lock</tt>.
+     *
+     * @param ppn the physical page number.
+     * @param stall <tt>true</tt> if a page fault is waiting for the frame.
+     */
+    static void evictFrame(int ppn, boolean stall) {
+        PageInfo victim = globalPageTable[ppn];
+        Lib.debug(dbgVM, "evicting pid " + victim.pid + " vpn "
+                + victim.entry.vpn + " from ppn " + ppn);
+        if (stall && isDirty(ppn))
+            numDirtyStalls++;
+        unmapFrame(ppn);
+        victim.process.evictPage(victim.entry);
     }
 
-    public static TranslationEntry clockAlgorithm(String key, TranslationEntry value) {
-        lock.acquire();
-        if (invertedPageTable.isEmpty()) {
-            lock.release();
-            return null;
-        }
-        int count=0;
-        int dirty=0;
-        TranslationEntry te;
-        Enumeration e = invertedPageTable.keys();
-        while(e.hasMoreElements()) {
-            String keyValue = (String) e.nextElement();
-            te = (TranslationEntry) invertedPageTable.get(keyValue);
-            if (!te.used) {
-                value.ppn = te.ppn;
-                invertedPageTable.remove(keyValue);
-                invertedPageTable.put(key, value);
-                lock.release();
-                return te;
-            } else {
-                if (!te.dirty) {
-                    te.used = false;
-                    invertedPageTable.put(keyValue,te);
-                    count++;        
-                }else dirty++;
-            }
+    /**
+     * Return a physical page to the frame allocator. The caller must hold
+     * <tt>lock</tt>.
+     *
+     * @param ppn the physical page number.
+     */
+    public static void releaseFrame(int ppn) {
+        unmapFrame(ppn);
+        frameAllocator.free(ppn);
+    }
+
+    /**
+     * Record that a physical page now holds the specified page of a process.
+     *
+     * @param process the owning process.
+     * @param entry the entry mapping the page; <tt>entry.ppn</tt> is the
+     * physical page.
+     */
+    public static void mapFrame(VMProcess process, TranslationEntry entry) {
+        invertedPageTable.put(InvertedPageTable.key(process.getPID(), entry.vpn), entry.ppn);
+        globalPageTable[entry.ppn] = new PageInfo(process, entry);
+        policy.frameMapped(entry.ppn);
+        process.numResident++;
+        process.peakResident = Math.max(process.peakResident, process.numResident);
+        peakFrames = Math.max(peakFrames,
+                Machine.processor().getNumPhysPages() - frameAllocator.getNumFreeFrames());
+    }
+
+    /**
+     * Forget the page held by a frame, leaving the frame allocated. The caller
+     * must hold <tt>lock</tt>.
+     *
+     * @param ppn the physical page number.
+     */
+    static void unmapFrame(int ppn) {
+        PageInfo info = globalPageTable[ppn];
+        if (info != null) {
+            invertedPageTable.remove(InvertedPageTable.key(info.pid, info.entry.vpn));
+            globalPageTable[ppn] = null;
+            policy.frameUnmapped(ppn);
+            info.process.numResident--;
         }
-        if (count>0 || dirty>0) {
-            Enumeration en = invertedPageTable.keys();
-            if (en.hasMoreElements()) {
-                String kv = (String) en.nextElement();
-                te = (TranslationEntry) invertedPageTable.get(kv);
-                value.ppn = te.ppn;                
-                invertedPageTable.remove(kv);
-                invertedPageTable.put(key,value);
-                lock.release();
-                return te;
-            }
+    }
+
+    /**
+     * Return the shared frame of zeroes, allocating it if no page is mapped
+     * onto it. The caller must hold <tt>lock</tt>.
+     *
+     * @return the physical page number of the zero frame.
+     */
+    static int getZeroFrame() {
+        if (zeroFrame == -1) {
+            zeroFrame = acquireFrame();
+            Arrays.fill(Machine.processor().getMemory(), zeroFrame*Processor.pageSize,
+                    (zeroFrame+1)*Processor.pageSize, (byte) 0);
+            pageMerger.frameShared(zeroFrame);
         }
-        lock.release();
-        return null;
+        return zeroFrame;
+    }
+
+    /**
+     * Record that one more page is mapped onto a shared frame. A shared frame
+     * is not in the frame tables, so it is never chosen for eviction. The
+     * caller must hold <tt>lock</tt>.
+     *
+     * @param ppn the physical page number.
+     */
+    static void shareFrame(int ppn) {
+        shareCounts[ppn]++;
     }
 
-    public static class PageTableKey {
-        private int PID;
-        private int vpn;
-        public PageTableKey(int pid, int vpn) {
-            this.PID = pid;
-            this.vpn = vpn;
+    /**
+     * Record that a page mapped onto a shared frame is gone, freeing the frame
+     * once no page is left on it. The caller must hold <tt>lock</tt>.
+     *
+     * @param ppn the physical page number.
+     */
+    static void releaseShared(int ppn) {
+        Lib.assertTrue(shareCounts[ppn] > 0);
+        if (--shareCounts[ppn] == 0) {
+            pageMerger.frameReleased(ppn);
+            frameAllocator.free(ppn);
+            if (ppn == zeroFrame)
+                zeroFrame = -1;
         }
-        public int getVPN() {return this.vpn;}
-        public int getPID() {return this.PID;}
-        public String toString() {return this.PID + "-" + this.vpn;}
-    }
-
-    // private static void releaseSwapTable(int element) {
-    //     lock.acquire();
-    //     swapPPN.add(element,-1);
-    //     lock.release();
-    // }
-    
-    // private static TranslationEntry getSwapTable(String key) {
-    //     TranslationEntry te = (TranslationEntry) swapTable.get(key);
-    //     return te;
-    // }
-
-    // public static void writeSwapFile(TranslationEntry te, byte[] page) {        
-    //     //UserProcess.readVirtualMemory(bufferToWritePointer, bytesToWrite, 0, numberOfBytes);
-    //     swapFile.write(page,0,page.length);
-    // }
+    }
+
+    /**
+     * Test whether a frame is shared by read-only mappings.
+     *
+     * @param ppn the physical page number.
+     * @return <tt>true</tt> if at least one page is mapped onto the frame.
+     */
+    public static boolean isShared(int ppn) {
+        return shareCounts[ppn] > 0;
+    }
+
+    /**
+     * Test whether a frame holds a page that may be evicted.
+     *
+     * @param ppn the physical page number.
+     * @return <tt>true</tt> if the frame is resident and not pinned.
+     */
+    public static boolean isEvictable(int ppn) {
+        return globalPageTable[ppn] != null && !pinnedPages[ppn];
+    }
+
+    /**
+     * Return the used bit of the page in a resident frame.
+     */
+    public static boolean isUsed(int ppn) {
+        PageInfo info = globalPageTable[ppn];
+        info.process.foldWalkBits(info.entry);
+        return info.entry.used;
+    }
+
+    /**
+     * Return the dirty bit of the page in a resident frame.
+     */
+    public static boolean isDirty(int ppn) {
+        PageInfo info = globalPageTable[ppn];
+        info.process.foldWalkBits(info.entry);
+        return info.entry.dirty;
+    }
+
+    /**
+     * Clear the used bit of the page in a resident frame, including any copy
+     * of it in the TLB.
+     */
+    public static void clearUsed(int ppn) {
+        PageInfo info = globalPageTable[ppn];
+        // the TLB merges its bits into the entry first, so clear it last
+        tlbManager.clearUsed(info.process, info.entry.vpn);
+        info.process.foldWalkBits(info.entry);
+        info.entry.used = false;
+    }
+
+    /**
+     * Return the key of the page in a resident frame, as used by
+     * <tt>InvertedPageTable</tt>.
+     */
+    public static long pageKey(int ppn) {
+        PageInfo info = globalPageTable[ppn];
+        return InvertedPageTable.key(info.pid, info.entry.vpn);
+    }
+
+    /**
+     * Return the resident entry for a page, or <tt>null</tt> if the page is
+     * not in physical memory. Does not allocate.
+     */
+    public static TranslationEntry getEntry(int pid, int vpn) {
+        int ppn = invertedPageTable.get(InvertedPageTable.key(pid, vpn));
+        return (ppn == -1) ? null : globalPageTable[ppn].entry;
+    }
 
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
     private static final char dbgVM = 'v';
+    /** Guards the frame tables, the swap file and every page fault. */
+    public static Lock lock;
     public static TLBManager tlbManager;
     public static SwapManager swapManager;
-    public static HashSet<Integer> pinnedPages;
-    public static Hashtable<String, TranslationEntry> invertedPageTable = new Hashtable<String, TranslationEntry> ();
+    /** Chooses the frames to evict. */
+    public static ReplacementPolicy policy;
+    /** Keeps a reserve of free frames. */
+    public static PageDaemon pageDaemon;
+    /** Loads pages ahead of sequential and strided faults. */
+    public static Prefetcher prefetcher;
+    /** Sets resident-set quotas and suspends processes when memory is short. */
+    public static WorkingSetManager workingSets;
+    /** Merges resident pages with the same contents. */
+    public static PageMerger pageMerger;
+    /** A frame of zeroes shared by untouched bss and stack pages, or -1. */
+    private static int zeroFrame = -1;
+    /** The number of pages mapped onto each shared frame. */
+    private static int[] shareCounts;
+    /** Frames that must not be evicted, e.g. while being filled. */
+    public static boolean[] pinnedPages;
+    /** The frame holding each resident page, by (pid, vpn). */
+    public static InvertedPageTable invertedPageTable = new InvertedPageTable(Machine.processor().getNumPhysPages());
+    /** The page held by each frame; the reverse of <tt>invertedPageTable</tt>. */
     public static PageInfo[] globalPageTable = new PageInfo[Machine.processor().getNumPhysPages()];
+
+    public static int numPageFaults = 0, numSwapReads = 0, numSwapWrites = 0;
+    /** Faults that found no free frame, and those whose victim was dirty. */
+    public static int numStalls = 0, numDirtyStalls = 0;
+    /** Regions mapped as superpages, and superpages broken up by eviction. */
+    public static int numPromotions = 0, numDemotions = 0;
+    /** Faults served by the zero frame, and shared pages copied on a write. */
+    public static int numZeroMaps = 0, numCopiesOnWrite = 0;
+    /** Pages the stacks of processes grew by beyond their initial size. */
+    public static int numStackGrowths = 0;
+    /** The most frames allocated at once, counting shared frames once. */
+    public static int peakFrames = 0;
+    /** TLB misses on resident pages, and the host time spent serving them. */
+    public static long numResidentMisses = 0, residentMissNanos = 0;
 }
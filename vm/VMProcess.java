@@ -4,7 +4,10 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
@@ -22,84 +25,107 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
-
+		tlbHits += Machine.processor().getNumTLBHits() - hitsAtSwitch;
 		super.saveState();
 	}
 
 	/**
 	 * Restore the state of this process after a context switch. Called by
-	 * <tt>UThread.restoreState()</tt>.
+	 * <tt>UThread.restoreState()</tt>. The TLB keeps the entries of this
+	 * process while others run; switching the ASID brings them back.
 	 */
 	public void restoreState() {
-		TranslationEntry te;
-		for (int i = 0; i < Machine.processor().getTLBSize(); ++i) {
-			 te = Machine.processor().readTLBEntry(i);
-			 te.valid = false;
-			 Machine.processor().writeTLBEntry(i, te);
-		}
+		VMKernel.tlbManager.activate(this);
+		if (pageTable != null)
+			Machine.processor().setWalkTable(pageTable);
+		hitsAtSwitch = Machine.processor().getNumTLBHits();
 	//	super.restoreState();
 	}
 
+	int getPID() {
+		return PID;
+	}
 
+	/**
+	 * Release the physical pages and swap space of this process.
+	 */
 	protected void unloadSections() {
-		for (int i = 0; i < coff.getNumSections(); i++) {
-            TranslationEntry te = pageTable[i];
-            if(te!=null)VMKernel.unloadPage(PID, te.vpn);
-        }
-	}
+		tlbHits += Machine.processor().getNumTLBHits() - hitsAtSwitch;
+		hitsAtSwitch = Machine.processor().getNumTLBHits();
+		Lib.debug(dbgProcess, "TLB: pid " + PID + " hits " + tlbHits + ", misses "
+				+ tlbMisses + ", evictions " + tlbEvictions);
+		long ticks = Math.max(1, Machine.timer().getTime() - startTime);
+		Lib.debug(dbgProcess, "VM: pid " + PID + " resident " + numResident + " (peak "
+				+ peakResident + "), working set " + workingSetSize + ", quota " + quota
+				+ ", faults " + numFaults + " (" + numFaults*10000/ticks + " per 10000 ticks), "
+				+ numLocalEvictions + " own pages replaced, suspended " + numSuspensions + " times");
 
+		VMKernel.lock.acquire();
+		VMKernel.workingSets.unregister(this);
+		VMKernel.tlbManager.release(this);
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry te = pageEntries[vpn];
+			if (te == null) continue;
+			if (te.valid) {
+				if (VMKernel.isShared(te.ppn))
+					VMKernel.releaseShared(te.ppn);
+				else
+					VMKernel.releaseFrame(te.ppn);
+				te.valid = false;
+			}
+			VMKernel.swapManager.releaseSPN(vpn, PID);
+		}
+		VMKernel.swapManager.release(PID);
+		exited = true;
+		VMKernel.lock.release();
+	}
 
 	/**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
-     * 
+     * demand-paged. No page is loaded until it is first touched, and stack
+     * and bss pages are never read from the executable.
+     *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-    	try{
-			//pageTable = UserKernel.acquirePages(numPages);
-			int pageIndex = 0;
-
-			for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
-				CoffSection section = coff.getSection(sectionNumber);
-
-				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
-
-				for (int i = 0; i < section.getLength(); i++){
-					int vpn = section.getFirstVPN() + i;
-					TranslationEntry te = VMKernel.loadPage(PID, i);
-					if (te != null) {
-						pageTable[vpn] = te;
-	                    te.vpn = vpn;
-	                    Lib.debug(dbgProcess, "Loading page with PID:" + PID + " and VPN: " + vpn + " = " + te);
-	                    te.readOnly = section.isReadOnly();
-	                    section.loadPage(i, te.ppn);
-	                    pageIndex++;
-					}else{
-						TranslationEntry teFromSwap = VMKernel.loadPageFromSwap(PID, vpn,i);
-						if (teFromSwap != null) {
-							TranslationEntry newTe = new TranslationEntry(-1, -1, true, false, true, false);
-							VMKernel.PageTableKey key = new VMKernel.PageTableKey(PID, vpn);
-                        	TranslationEntry removed = VMKernel.clockAlgorithm(key.toString(), newTe);
-                        	byte[] memory = Machine.processor().getMemory();
-                       		byte[] page = new byte[pageSize];
-                       		System.arraycopy(memory, removed.ppn, page, 0, pageSize);
-							pageTable[removed.vpn] = newTe;     
-						}else{
-							coff.close();
-                        	return false;
-						}
-					}
+		pageEntries = new TranslationEntry[numPages];
+		stackLimit = numPages - 1 - maxStackPages;
+		stackBottom = numPages - 1 - stackPages;
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageEntries[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
 
-				}
+		for (int sectionNumber = 0; sectionNumber < coff.getNumSections(); sectionNumber++) {
+			CoffSection section = coff.getSection(sectionNumber);
 
-			}
-		}catch(Exception e){
-			System.out.println("UserProcess.loadSections() exception " + e);
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++)
+				pageEntries[section.getFirstVPN() + i].readOnly = section.isReadOnly();
 		}
+
+		if (Machine.processor().hasTLBWalker())
+			pageTable = new PackedPageTable();
+		lastUsed = new int[numPages];
+		Arrays.fill(lastUsed, Integer.MIN_VALUE);
+		startTime = Machine.timer().getTime();
+		VMKernel.lock.acquire();
+		VMKernel.workingSets.register(this);
+		VMKernel.lock.release();
 		return true;
     }
 
+	/**
+	 * Leave room below the stack for it to grow to <tt>maxStackPages</tt>, and
+	 * end the address space on a superpage boundary, so that the top of the
+	 * stack and the argument page can be promoted.
+	 */
+	protected int getStackPadding(int sectionPages) {
+		Lib.assertTrue(maxStackPages >= stackPages);
+		int growth = maxStackPages - stackPages;
+		int end = sectionPages + growth + stackPages + 1;
+		return growth + (superPageSize - end % superPageSize) % superPageSize;
+	}
+
 	/*
 	* @param cause the user exception that occurred.
 	 */
@@ -107,48 +133,783 @@ public class VMProcess extends UserProcess {
 		Processor processor = Machine.processor();
 		if(cause == Processor.exceptionTLBMiss){
 			handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
-			int result = handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
-			processor.writeRegister(Processor.regV0, result);
-			processor.advancePC();
+		}else if(cause == Processor.exceptionReadOnly
+				&& copyOnWrite(VMKernel.vpn(processor.readRegister(Processor.regBadVAddr)))){
+			//The write is retried on the private copy
 		}else{
 			super.handleException(cause);
 		}
 	}
-	
 
-	public int handleTLBMiss(int vaddr){
-		if(!validAddress(vaddr))return -1;
-		TranslationEntry te = getPageFromPageTable(vaddr);
-		if(te == null||!te.valid){
-			te =  VMKernel.loadPage(PID, VMKernel.vpn(vaddr));
-			// int ppn = VMKernel.acquirePage(PID);
-			// te = new TranslationEntry(VMKernel.vpn(vaddr), ppn, true, false, false, false);
+
+	public void handleTLBMiss(int vaddr){
+		//A suspended process has no pages, so it stops here until resumed
+		while(suspended) resumed.P();
+		//Time the misses that only refill the TLB, which should not allocate
+		long start = System.nanoTime();
+		int vpn = VMKernel.vpn(vaddr);
+		TranslationEntry te = VMKernel.getEntry(PID, vpn);
+		boolean resident = (te != null && !prefetched.get(vpn));
+		if(te == null){
+			if(!validAddress(vaddr)){
+				Lib.debug(dbgVM, "segmentation fault at " + Lib.toHexString(vaddr));
+				handleExit(-1);
+			}
+			te = faultIn(vpn);
+		}
+		else if(prefetched.get(vpn)){
+			//The page was loaded ahead of this access
+			VMKernel.lock.acquire();
+			if(prefetched.get(vpn)){
+				prefetched.clear(vpn);
+				setWalkEntry(te);
+				VMKernel.prefetcher.hit();
+				window = Math.min(window * 2, VMKernel.prefetcher.getMaxWindow());
+				notePageAccess(vpn);
+			}
+			VMKernel.lock.release();
+		}
+		if(Lib.test(dbgVM))
+			Lib.debug(dbgVM, "TLB miss: vpn " + te.vpn + " ppn " + te.ppn);
+		tlbMisses++;
+		TranslationEntry superPage = getSuperEntry(vpn);
+		if(VMKernel.tlbManager.add(superPage != null ? superPage : te))
+			tlbEvictions++;
+		if(resident){
+			VMKernel.numResidentMisses++;
+			VMKernel.residentMissNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Return a superpage TLB entry covering a page, or <tt>null</tt> if the
+	 * page is not part of a promoted region. The entry is reused by the next
+	 * call, which is safe because the TLB keeps a copy.
+	 */
+	private TranslationEntry getSuperEntry(int vpn){
+		if(superPageSize == 1 || vpn >= numPages || !superRegions.get(vpn / superPageSize))
+			return null;
+		int base = vpn & ~(superPageSize - 1);
+		int ppn = pageEntries[base].ppn;
+		for(int i = 0; i < superPageSize; i++){
+			TranslationEntry te = pageEntries[base + i];
+			if(!te.valid || te.ppn != ppn + i)
+				return null;
+		}
+		superEntry.vpn = base;
+		superEntry.ppn = ppn;
+		superEntry.valid = true;
+		superEntry.readOnly = false;
+		superEntry.used = false;
+		superEntry.dirty = false;
+		superEntry.pages = superPageSize;
+		return superEntry;
+	}
+
+	/**
+	 * Make a page of this process resident, loading it from swap, the
+	 * executable or a mapped file, or zero-filling it.
+	 *
+	 * @param vpn the virtual page number, which must be valid.
+	 * @return the resident entry for the page.
+	 */
+	protected TranslationEntry faultIn(int vpn) {
+		VMKernel.lock.acquire();
+		TranslationEntry te = getEntry(vpn);
+		if (!te.valid) {
+			VMKernel.numPageFaults++;
+			numFaults++;
+			faultsSinceSample++;
+			pageUsed(vpn);
+			if (!promote(vpn) && !mapZeroPage(vpn))
+				fillFrame(vpn, te, acquireFrame());
+			notePageAccess(vpn);
+		}
+		VMKernel.lock.release();
+		return te;
+	}
+
+	/**
+	 * Find a frame for a fault of this process. A process at its quota
+	 * replaces one of its own pages; otherwise the kernel finds the frame.
+	 * Called holding <tt>VMKernel.lock</tt>.
+	 */
+	private int acquireFrame() {
+		if (numResident >= quota) {
+			VMKernel.tlbManager.sync();
+			int ppn = selectOwnVictim();
+			if (ppn != -1) {
+				VMKernel.evictFrame(ppn, false);
+				numLocalEvictions++;
+				return ppn;
+			}
+		}
+		return VMKernel.acquireFrame();
+	}
+
+	/**
+	 * Choose a resident page of this process to replace, with a clock over
+	 * its pages: a used page loses its used bit and is spared.
+	 *
+	 * @return the frame of the victim, or -1 if every page is pinned or
+	 * shared.
+	 */
+	private int selectOwnVictim() {
+		for (int i = 0; i < 2 * numPages; i++) {
+			TranslationEntry te = pageEntries[localHand];
+			localHand = (localHand + 1) % numPages;
+			if (!te.valid || !VMKernel.isEvictable(te.ppn))
+				continue;
+			if (VMKernel.isUsed(te.ppn))
+				VMKernel.clearUsed(te.ppn);
+			else
+				return te.ppn;
+		}
+		return -1;
+	}
+
+	/**
+	 * Called by the working set manager, holding <tt>VMKernel.lock</tt>, to
+	 * evict every page of this process it can. The process blocks on its next
+	 * TLB miss until <tt>resume()</tt> is called.
+	 */
+	void suspend() {
+		suspended = true;
+		numSuspensions++;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry te = pageEntries[vpn];
+			if (te.valid && VMKernel.isEvictable(te.ppn)) {
+				int ppn = te.ppn;
+				VMKernel.evictFrame(ppn, false);
+				UserKernel.frameAllocator.free(ppn);
+			}
+		}
+	}
+
+	/**
+	 * Called by the working set manager, holding <tt>VMKernel.lock</tt>, to
+	 * let a suspended process run again.
+	 */
+	void resume() {
+		suspended = false;
+		resumed.V();
+	}
+
+	/**
+	 * Record that a page was used in the current working set sample.
+	 */
+	void pageUsed(int vpn) {
+		if (vpn < numPages)
+			lastUsed[vpn] = VMKernel.workingSets.getSample();
+	}
+
+	/**
+	 * Count the pages used since a sample.
+	 *
+	 * @param since the first sample in the working set window.
+	 * @return the size of the working set.
+	 */
+	int countWorkingSet(int since) {
+		int size = 0;
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (lastUsed[vpn] > since)
+				size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Load a page into a frame and map it. Called holding
+	 * <tt>VMKernel.lock</tt>.
+	 */
+	private void fillFrame(int vpn, TranslationEntry te, int ppn) {
+		VMKernel.pinnedPages[ppn] = true;
+		loadPage(vpn, te, ppn);
+		te.ppn = ppn;
+		te.valid = true;
+		te.used = false;
+		VMKernel.mapFrame(this, te);
+		setWalkEntry(te);
+		VMKernel.pinnedPages[ppn] = false;
+	}
+
+	/**
+	 * Try to fault in the whole aligned superpage region around a page, as a
+	 * superpage. Only regions of writable pages (data, bss and stack) with no
+	 * page resident are promoted, and only into an aligned run of free frames
+	 * that the page daemon can spare. Called holding <tt>VMKernel.lock</tt>.
+	 *
+	 * @param vpn the faulting page.
+	 * @return <tt>true</tt> if the region was loaded.
+	 */
+	private boolean promote(int vpn) {
+		if (superPageSize == 1 || vpn >= numPages)
+			return false;
+		int base = vpn & ~(superPageSize - 1);
+		if (base + superPageSize > numPages || numResident + superPageSize > quota)
+			return false;
+		for (int i = base; i < base + superPageSize; i++) {
+			if (pageEntries[i].readOnly || pageEntries[i].valid || belowStack(i))
+				return false;
+		}
+		if (!VMKernel.pageDaemon.hasSpareFrames(superPageSize))
+			return false;
+		int ppn = UserKernel.frameAllocator.allocateRun(superPageSize);
+		if (ppn == -1)
+			return false;
+
+		for (int i = 0; i < superPageSize; i++)
+			fillFrame(base + i, pageEntries[base + i], ppn + i);
+		superRegions.set(base / superPageSize);
+		for (int i = base; i < base + superPageSize; i++)
+			setWalkEntry(pageEntries[i]);
+		VMKernel.numPromotions++;
+		VMKernel.pageDaemon.frameAllocated();
+		Lib.debug(dbgVM, "promoted vpn " + base + " to a superpage at ppn " + ppn);
+		return true;
+	}
+
+	/**
+	 * Map a page that would be zero-filled onto the shared zero frame, to be
+	 * copied on its first write. Called holding <tt>VMKernel.lock</tt>.
+	 *
+	 * @param vpn the faulting page.
+	 * @return <tt>true</tt> if the page was mapped.
+	 */
+	private boolean mapZeroPage(int vpn) {
+		if (vpn >= numPages || pageEntries[vpn].readOnly
+				|| VMKernel.swapManager.hasCopy(vpn, PID))
+			return false;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			int spn = vpn - section.getFirstVPN();
+			if (spn >= 0 && spn < section.getLength() && section.isInitialzed())
+				return false;
+		}
+
+		int ppn = VMKernel.getZeroFrame();
+		sharePage(pageEntries[vpn], ppn);
+		VMKernel.shareFrame(ppn);
+		VMKernel.numZeroMaps++;
+		return true;
+	}
+
+	/**
+	 * Called by the page merger, holding <tt>VMKernel.lock</tt>, to map a page
+	 * onto a shared frame with the same contents. The caller has taken the
+	 * page's own frame out of the frame tables. A writable page becomes
+	 * read-only until it is copied on a write; its copy in swap is dropped.
+	 *
+	 * @param te the entry of the page.
+	 * @param ppn the shared frame.
+	 */
+	void sharePage(TranslationEntry te, int ppn) {
+		VMKernel.tlbManager.invalidVPN(this, te.vpn);
+		if (!te.readOnly) {
+			te.readOnly = true;
+			copyOnWritePages.set(te.vpn);
+		}
+		te.ppn = ppn;
+		te.valid = true;
+		te.dirty = false;
+		prefetched.clear(te.vpn);
+		setWalkEntry(te);
+		VMKernel.swapManager.releaseSPN(te.vpn, PID);
+	}
+
+	/**
+	 * Test whether the page merger may share a resident page of this process:
+	 * it must be a page of the program, not part of a superpage.
+	 */
+	boolean canSharePage(int vpn) {
+		return !exited && vpn < numPages && !superRegions.get(vpn / superPageSize);
+	}
+
+	/**
+	 * Give a page mapped onto a shared frame a private, writable copy.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>false</tt> if the page is not copy-on-write.
+	 */
+	private boolean copyOnWrite(int vpn) {
+		if (vpn < 0 || !copyOnWritePages.get(vpn))
+			return false;
+		VMKernel.lock.acquire();
+		TranslationEntry te = pageEntries[vpn];
+		if (copyOnWritePages.get(vpn) && te.valid) {
+			int ppn = acquireFrame();
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, te.ppn*pageSize, memory, ppn*pageSize, pageSize);
+			VMKernel.tlbManager.invalidVPN(this, vpn);
+			VMKernel.releaseShared(te.ppn);
+			copyOnWritePages.clear(vpn);
+			te.readOnly = false;
+			te.ppn = ppn;
+			te.used = true;
+			te.dirty = true;
+			VMKernel.mapFrame(this, te);
+			setWalkEntry(te);
+			VMKernel.numCopiesOnWrite++;
+		}
+		VMKernel.lock.release();
+		return true;
+	}
+
+	/**
+	 * Called by the prefetcher, holding <tt>VMKernel.lock</tt>, to load a page
+	 * into a free frame before it is touched. Does nothing if the page is
+	 * resident, the process has exited, or no frame can be spared.
+	 *
+	 * @param vpn the virtual page number.
+	 * @return <tt>true</tt> if the page was loaded.
+	 */
+	boolean prefetchPage(int vpn) {
+		if (exited || vpn < 0 || vpn >= numPages || pageEntries[vpn].valid
+				|| belowStack(vpn) || numResident >= quota
+				|| !VMKernel.pageDaemon.hasSpareFrames(1))
+			return false;
+		int ppn = UserKernel.frameAllocator.allocate();
+		if (ppn == -1)
+			return false;
+
+		//Set first, so the page traps on its first touch even with a walker
+		prefetched.set(vpn);
+		fillFrame(vpn, pageEntries[vpn], ppn);
+		VMKernel.pageDaemon.frameAllocated();
+		return true;
+	}
+
+	/**
+	 * Feed a page fault, or the first touch of a prefetched page, to the
+	 * stride detector. Each stream remembers its last page and stride; an
+	 * access one stride past the last page confirms the stream, and a
+	 * confirmed stream queues the next <tt>window</tt> pages along its stride.
+	 * The window doubles when a prefetched page is used and halves when one
+	 * is evicted unused. Called holding <tt>VMKernel.lock</tt>.
+	 */
+	private void notePageAccess(int vpn) {
+		if (window == 0)
+			return;
+
+		int s = 0, oldest = 0;
+		for (; s < numStreams; s++) {
+			if (vpn == streamLast[s]) {
+				streamAge[s] = ++accessCount;
+				return;
+			}
+			if (streamLast[s] != -1 && Math.abs(vpn - streamLast[s]) <= maxStride)
+				break;
+			if (streamAge[s] < streamAge[oldest])
+				oldest = s;
+		}
+		if (s == numStreams) {
+			//Start a new stream in place of the least recently used one
+			s = oldest;
+			streamStride[s] = 0;
+		}
+
+		int stride = vpn - streamLast[s];
+		boolean confirmed = streamLast[s] != -1 && stride == streamStride[s];
+		streamStride[s] = streamLast[s] == -1 ? 0 : stride;
+		streamLast[s] = vpn;
+		streamAge[s] = ++accessCount;
+
+		if (confirmed) {
+			for (int i = 1; i <= window; i++)
+				VMKernel.prefetcher.request(this, vpn + i * stride);
+		}
+	}
+
+	/**
+	 * Fill a physical page with the contents of a virtual page.
+	 */
+	private void loadPage(int vpn, TranslationEntry te, int ppn) {
+		byte[] memory = Machine.processor().getMemory();
+
+		//A copy left in swap stays valid until the page is written again
+		te.dirty = false;
+		if (VMKernel.swapManager.retrieveSwapPage(vpn, PID, ppn)) {
+			te.dirty = !VMKernel.swapManager.hasCopy(vpn, PID);
+			return;
+		}
+
+		MappedFile map = findMapping(vpn);
+		if (map != null) {
+			map.loadPage(vpn, ppn);
+			return;
+		}
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			int spn = vpn - section.getFirstVPN();
+			if (spn >= 0 && spn < section.getLength()) {
+				section.loadPage(spn, ppn);
+				return;
+			}
+		}
+
+		//Stack and argument pages start out zeroed
+		Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	/**
+	 * Called by the kernel, holding <tt>VMKernel.lock</tt>, to take a resident
+	 * page of this process out of physical memory. A clean page can be
+	 * reloaded from where it came from, so only a dirty page is written out.
+	 *
+	 * @param te the resident entry.
+	 */
+	void evictPage(TranslationEntry te) {
+		VMKernel.tlbManager.invalidVPN(this, te.vpn);
+		foldWalkBits(te);
+		if (te.vpn < numPages && superRegions.get(te.vpn / superPageSize)) {
+			//The rest of the region stays resident as ordinary pages
+			int base = te.vpn & ~(superPageSize - 1);
+			superRegions.clear(te.vpn / superPageSize);
+			for (int i = base; i < base + superPageSize; i++)
+				setWalkEntry(pageEntries[i]);
+			VMKernel.numDemotions++;
+		}
+		if (te.dirty)
+			cleanPage(te);
+		te.valid = false;
+		setWalkEntry(te);
+
+		if (prefetched.get(te.vpn)) {
+			prefetched.clear(te.vpn);
+			VMKernel.prefetcher.miss();
+			window = Math.max(1, window / 2);
+		}
+	}
+
+	/**
+	 * Called by the kernel, holding <tt>VMKernel.lock</tt>, to write a dirty
+	 * resident page to its mapped file or to swap. The page stays resident
+	 * and becomes clean.
+	 *
+	 * @param te the resident entry.
+	 */
+	void cleanPage(TranslationEntry te) {
+		//Cleared first, so a write made while the copy is under way counts
+		VMKernel.tlbManager.clearDirty(this, te.vpn);
+		foldWalkBits(te);
+		te.dirty = false;
+		MappedFile map = findMapping(te.vpn);
+		if (map != null)
+			map.writeBack(te.vpn, te.ppn);
+		else
+			VMKernel.swapManager.swapIn(new PageInfo(this, te));
+	}
+
+	/**
+	 * Copy the entry of a page into the page table the processor walks. A
+	 * prefetched page is left out until its first touch traps, so the
+	 * prefetcher still sees it. Called holding <tt>VMKernel.lock</tt>
+	 * whenever an entry is mapped, unmapped or changes its frame.
+	 */
+	private void setWalkEntry(TranslationEntry te) {
+		if (pageTable == null)
+			return;
+		int pte = 0;
+		if (te.valid && !prefetched.get(te.vpn)) {
+			pte = PackedPageTable.pack(te.ppn, true, te.readOnly, false, false);
+			if (te.vpn < numPages && superRegions.get(te.vpn / superPageSize))
+				pte |= PackedPageTable.superPageBit;
 		}
-		System.out.println("VMProcess.handleTLBMiss() \nWrite TLB Entry: vpn: " + te.vpn + " ppn:" + te.ppn +"\n");
-		VMKernel.tlbManager.add(te);
-		return te.ppn;
+		pageTable.set(te.vpn, pte);
+	}
+
+	/**
+	 * Move the used and dirty bits the processor's walker set in the page
+	 * table into the entry of a resident page. Called holding
+	 * <tt>VMKernel.lock</tt> before the bits are read.
+	 *
+	 * @param te the resident entry.
+	 */
+	void foldWalkBits(TranslationEntry te) {
+		if (pageTable == null)
+			return;
+		int bits = pageTable.get(te.vpn)
+				& (PackedPageTable.usedBit | PackedPageTable.dirtyBit);
+		if (bits == 0)
+			return;
+		te.used = te.used || (bits & PackedPageTable.usedBit) != 0;
+		te.dirty = te.dirty || (bits & PackedPageTable.dirtyBit) != 0;
+		pageTable.clearBits(te.vpn, bits);
+	}
+
+	/**
+	 * Return the page table entry of a valid page, which may be in a mapped
+	 * file.
+	 */
+	private TranslationEntry getEntry(int vpn) {
+		if (vpn < numPages)
+			return pageEntries[vpn];
+		return findMapping(vpn).getEntry(vpn);
+	}
+
+	protected boolean validAddress(int address){
+		int vpn = Processor.pageFromAddress(address);
+		if(belowStack(vpn)) return growStack(address);
+		return (vpn<numPages && vpn>=0) || findMapping(vpn) != null;
+	}
+
+	/**
+	 * Grow the stack down to the page holding an address, if the address is
+	 * not below the stack pointer. The stack starts out with
+	 * <tt>stackPages</tt> pages and may grow to <tt>maxStackPages</tt>; like
+	 * every stack page, the new pages get no frame until they are touched.
+	 *
+	 * @param address an address below the bottom of the stack.
+	 * @return <tt>true</tt> if the stack now covers the address.
+	 */
+	private boolean growStack(int address){
+		int sp = readUserRegister(Processor.regSP);
+		if(address < sp) return false;
+		int vpn = Processor.pageFromAddress(address);
+		Lib.debug(dbgVM, "stack of pid " + PID + " grew by " + (stackBottom - vpn) + " pages");
+		VMKernel.numStackGrowths += stackBottom - vpn;
+		stackBottom = vpn;
+		return true;
+	}
+
+	/**
+	 * Test whether a page is in the room left for the stack to grow into,
+	 * which is only faulted in once the stack reaches it.
+	 */
+	private boolean belowStack(int vpn){
+		return vpn >= stackLimit && vpn < stackBottom;
 	}
 
+	/**
+	 * Transfer data between a buffer and this process's virtual memory,
+	 * faulting in each page before it is copied.
+	 */
+	private int transfer(int vaddr, byte[] data, int offset, int length, boolean write) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= data.length);
+		if(!validAddress(vaddr)) return -1;
+		byte[] memory = Machine.processor().getMemory();
 
+		int bytesCopied = 0;
+		while(bytesCopied < length){
+			int addr = vaddr + bytesCopied;
+			if(!validAddress(addr)) break;
+			int vpn = VMKernel.vpn(addr);
+			if(write && getEntry(vpn).readOnly && !copyOnWritePages.get(vpn)) break;
+			TranslationEntry te = faultIn(vpn);
+			if(write) copyOnWrite(vpn);
+			int pageOffset = VMKernel.offset(addr);
+			int bytesToCopy = Math.min(length - bytesCopied, pageSize - pageOffset);
+			//The daemons may have evicted or merged the page since it was
+			//faulted in, so copy holding the lock and fault it in again if so
+			VMKernel.lock.acquire();
+			if(!te.valid || (write && te.readOnly)){
+				VMKernel.lock.release();
+				continue;
+			}
+			int paddr = te.ppn*pageSize + pageOffset;
+			if(write)
+				System.arraycopy(data, offset + bytesCopied, memory, paddr, bytesToCopy);
+			else
+				System.arraycopy(memory, paddr, data, offset + bytesCopied, bytesToCopy);
+			te.used = true;
+			if(write) te.dirty = true;
+			VMKernel.lock.release();
+			bytesCopied += bytesToCopy;
+		}
+		return bytesCopied;
+	}
 
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
-		VMKernel.PageTableKey key = new VMKernel.PageTableKey(PID,VMKernel.vpn(vaddr));
-		TranslationEntry te = VMKernel.invertedPageTable.get(key);
-		te.used = true;
-		return super.readVirtualMemory(vaddr, data, offset, length);
+		return transfer(vaddr, data, offset, length, false);
 	}
 
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset,int length){
-		VMKernel.PageTableKey key = new VMKernel.PageTableKey(PID,VMKernel.vpn(vaddr));
-		TranslationEntry te = VMKernel.invertedPageTable.get(key);
-		te.used = true;
-		te.dirty = true;
-		return super.writeVirtualMemory(vaddr, data, offset, length);
+		return transfer(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Handle the mmap() system call. Reserves virtual pages for the whole
+	 * file at the specified address; pages are read from the file when they
+	 * are first touched.
+	 * @param fileDescriptor the file to map
+	 * @param address the page aligned virtual address of the mapping
+	 * @return the length of the file, or -1 on error
+	 */
+	protected int handleMmap(int fileDescriptor, int address){
+		if(fileDescriptor < 0 || fileDescriptor >= fileTable.length) return -1;
+		OpenFile file = fileTable[fileDescriptor];
+		if(file == null || mappings.containsKey(fileDescriptor)) return -1;
+		if(VMKernel.offset(address) != 0) return -1;
+		int length = file.length();
+		if(length < 0) return -1;
+
+		int firstVPN = Processor.pageFromAddress(address);
+		int pages = Lib.divRoundUp(length, pageSize);
+		if(firstVPN < numPages || (long) firstVPN + pages > Processor.maxPages) return -1;
+		for(MappedFile map : mappings.values()){
+			if(firstVPN < map.firstVPN + map.numPages && map.firstVPN < firstVPN + pages)
+				return -1;
+		}
+
+		mappings.put(fileDescriptor, new MappedFile(file, firstVPN, pages, length));
+		Lib.debug(dbgVM, "mapped fd " + fileDescriptor + " at vpn " + firstVPN + " (" + pages + " pages)");
+		return length;
+	}
+
+	protected int handleRead(int fileDescriptor, int bufferPtr, int size){
+		if(mappings.containsKey(fileDescriptor)) return -1;
+		return super.handleRead(fileDescriptor, bufferPtr, size);
+	}
+
+	protected int handleWrite(int fileDescriptor, int bufferPointer, int size){
+		if(mappings.containsKey(fileDescriptor)) return -1;
+		return super.handleWrite(fileDescriptor, bufferPointer, size);
+	}
+
+	/**
+	 * Closing a mapped file flushes its dirty pages and removes the mapping.
+	 */
+	protected int handleClose(int fileDescriptor){
+		MappedFile map = mappings.remove(fileDescriptor);
+		if(map != null) map.unmap();
+		return super.handleClose(fileDescriptor);
+	}
+
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		if(syscall == syscallMmap){
+			fileTableLock.acquire();
+			int result = handleMmap(a0, a1);
+			fileTableLock.release();
+			return result;
+		}
+		return super.handleSyscall(syscall, a0, a1, a2, a3);
 	}
 
+	private MappedFile findMapping(int vpn) {
+		for (MappedFile map : mappings.values()) {
+			if (vpn >= map.firstVPN && vpn < map.firstVPN + map.numPages)
+				return map;
+		}
+		return null;
+	}
+
+	/**
+	 * A file mapped into a range of virtual pages.
+	 */
+	private class MappedFile {
+		MappedFile(OpenFile file, int firstVPN, int numPages, int length) {
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+
+		TranslationEntry getEntry(int vpn) {
+			TranslationEntry te = pages.get(vpn);
+			if (te == null) {
+				te = new TranslationEntry(vpn, -1, false, false, false, false);
+				pages.put(vpn, te);
+			}
+			return te;
+		}
+
+		void loadPage(int vpn, int ppn) {
+			byte[] memory = Machine.processor().getMemory();
+			int pos = (vpn - firstVPN) * pageSize;
+			int amount = Math.max(0, file.read(pos, memory, ppn*pageSize,
+					Math.min(pageSize, length - pos)));
+			Arrays.fill(memory, ppn*pageSize + amount, (ppn+1)*pageSize, (byte) 0);
+		}
+
+		void writeBack(int vpn, int ppn) {
+			int pos = (vpn - firstVPN) * pageSize;
+			file.write(pos, Machine.processor().getMemory(), ppn*pageSize,
+					Math.min(pageSize, length - pos));
+		}
+
+		//Flush dirty pages and give their frames back
+		void unmap() {
+			VMKernel.lock.acquire();
+			for (Iterator<TranslationEntry> i = pages.values().iterator(); i.hasNext();) {
+				TranslationEntry te = i.next();
+				if (te.valid) {
+					VMKernel.tlbManager.invalidVPN(VMProcess.this, te.vpn);
+					foldWalkBits(te);
+					if (te.dirty)
+						writeBack(te.vpn, te.ppn);
+					VMKernel.releaseFrame(te.ppn);
+					te.valid = false;
+					setWalkEntry(te);
+				}
+				i.remove();
+			}
+			VMKernel.lock.release();
+		}
+
+		OpenFile file;
+		int firstVPN, numPages, length;
+		HashMap<Integer, TranslationEntry> pages = new HashMap<Integer, TranslationEntry>();
+	}
+
+	/**
+	 * The entries of the program's pages. The processor sees them through the
+	 * TLB, and through <tt>pageTable</tt> if it walks page tables.
+	 */
+	private TranslationEntry[] pageEntries;
+	/** The ASID of this process, valid while its generation is current. */
+	int asid, asidGeneration = 0;
+	/** Resident pages, and the most there have been; kept by the kernel. */
+	int numResident = 0, peakResident = 0;
+	/** The most resident pages before this process replaces its own. */
+	int quota;
+	/** The working set size at the last sample, and the faults since it. */
+	int workingSetSize = 0, faultsSinceSample = 0;
+	/** The sample in which each page was last used. */
+	private int[] lastUsed;
+	private int numFaults = 0, numLocalEvictions = 0, numSuspensions = 0;
+	private long startTime;
+	/** Where the clock over this process's own pages resumes. */
+	private int localHand = 0;
+	/** Set while the working set manager has this process suspended. */
+	boolean suspended = false;
+	private Semaphore resumed = new Semaphore(0);
+	/** The lowest page the stack may grow to, and its current bottom. */
+	private int stackLimit, stackBottom;
+	private static final int maxStackPages = Config.getInteger("VMProcess.maxStackPages", 32);
+	/** Writable pages mapped read-only onto a shared frame. */
+	private BitSet copyOnWritePages = new BitSet();
+	/** The regions of <tt>superPageSize</tt> pages mapped as superpages. */
+	private BitSet superRegions = new BitSet();
+	private static final int superPageSize = Machine.processor().getSuperPageSize();
+	/** Returned by <tt>getSuperEntry()</tt>, so that TLB misses do not allocate. */
+	private TranslationEntry superEntry = new TranslationEntry();
+	/** TLB activity of this process. */
+	private long tlbHits = 0, hitsAtSwitch = 0;
+	private int tlbMisses = 0, tlbEvictions = 0;
+	/** Set once the process has given back its frames. */
+	private boolean exited = false;
+
+	/** Pages that were prefetched and have not been touched yet. */
+	private BitSet prefetched = new BitSet();
+	/** The number of pages to prefetch ahead of a confirmed stream. */
+	private int window = Math.min(2, VMKernel.prefetcher.getMaxWindow());
+	/** The last page, stride and last access of each fault stream. */
+	private int[] streamLast = {-1, -1, -1, -1};
+	private int[] streamStride = new int[numStreams];
+	private int[] streamAge = new int[numStreams];
+	private int accessCount = 0;
+	private static final int numStreams = 4, maxStride = 4;
+
+	/** Mapped files, by file descriptor. */
+	private HashMap<Integer, MappedFile> mappings = new HashMap<Integer, MappedFile>();
+
+	private static final int syscallMmap = 10;
+
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
 
 	private static final char dbgVM = 'v';
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock algorithm. Each frame remembers the simulated time its page was
+ * last seen used. The hand spares used frames, stamping them with the current
+ * time, and evicts the first clean frame that has been idle for longer than
+ * the working set window, <tt>WSClockPolicy.window</tt> ticks. Frames that
+ * are out of the working set but dirty are only taken if no clean one is
+ * found, and failing that the oldest frame goes.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+		lastUse = new long[numFrames];
+		window = Config.getInteger("WSClockPolicy.window", 10000);
+	}
+
+	public void frameMapped(int ppn) {
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void frameUnmapped(int ppn) {
+	}
+
+	public int selectVictim() {
+		long now = Machine.timer().getTime();
+		int dirtyCandidate = -1, oldest = -1;
+
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+			if (!VMKernel.isEvictable(ppn))
+				continue;
+
+			if (VMKernel.isUsed(ppn)) {
+				VMKernel.clearUsed(ppn);
+				lastUse[ppn] = now;
+			}
+			else if (now - lastUse[ppn] > window) {
+				if (!VMKernel.isDirty(ppn))
+					return ppn;
+				if (dirtyCandidate == -1)
+					dirtyCandidate = ppn;
+			}
+
+			if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+				oldest = ppn;
+		}
+
+		return (dirtyCandidate != -1) ? dirtyCandidate : oldest;
+	}
+
+	private int numFrames;
+
+	private int hand = 0;
+
+	private long[] lastUse;
+
+	private int window;
+}
@@ -0,0 +1,183 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+import java.util.LinkedList;
+
+/**
+ * A kernel thread that estimates the working set of every process and keeps
+ * the processes that are running from thrashing each other.
+ *
+ * <p>
+ * Every <tt>WorkingSet.interval</tt> ticks the thread samples the used bits
+ * of the resident pages and clears them. The working set of a process is the
+ * set of pages it used in the last <tt>WorkingSet.window</tt> samples,
+ * counting the pages it faulted in.
+ *
+ * <p>
+ * Each process has a quota of resident pages, set by its page fault
+ * frequency: a process that faulted more than <tt>WorkingSet.highFaults</tt>
+ * times in an interval has its quota raised by that many pages, and one that
+ * faulted fewer than <tt>WorkingSet.lowFaults</tt> times has it lowered toward
+ * its working set. A process at its quota replaces its own pages instead of
+ * taking frames from other processes.
+ *
+ * <p>
+ * When the working sets of the processes that used pages in the last
+ * interval add up to more than physical memory, the youngest of them is
+ * suspended: its pages are evicted, and it blocks on its next TLB miss.
+ * Suspended processes are resumed in the order they were suspended, once
+ * their working sets fit again or nothing else is using memory. An interval
+ * of zero disables the thread, leaving every process with an unlimited
+ * quota.
+ */
+public class WorkingSetManager implements Runnable {
+	/**
+	 * Allocate a new working set manager and start its thread.
+	 */
+	public WorkingSetManager() {
+		numFrames = Machine.processor().getNumPhysPages();
+		interval = Config.getInteger("WorkingSet.interval", 5000);
+		window = Config.getInteger("WorkingSet.window", 4);
+		highFaults = Config.getInteger("WorkingSet.highFaults", 8);
+		lowFaults = Config.getInteger("WorkingSet.lowFaults", 2);
+		Lib.assertTrue(interval >= 0 && window > 0 && lowFaults <= highFaults);
+		minQuota = Math.min(4, numFrames);
+
+		if (interval > 0)
+			new KThread(this).setName("working set manager").fork();
+	}
+
+	/**
+	 * Start tracking a process that has just been loaded. Called holding
+	 * <tt>VMKernel.lock</tt>.
+	 *
+	 * @param process the new process.
+	 */
+	void register(VMProcess process) {
+		process.quota = numFrames;
+		processes.add(process);
+	}
+
+	/**
+	 * Stop tracking a process that is exiting. Called holding
+	 * <tt>VMKernel.lock</tt>.
+	 *
+	 * @param process the process.
+	 */
+	void unregister(VMProcess process) {
+		processes.remove(process);
+		suspended.remove(process);
+	}
+
+	/**
+	 * Return the number of the current sample, which a page fault records as
+	 * a use of the page.
+	 *
+	 * @return the number of samples taken so far.
+	 */
+	int getSample() {
+		return numSamples;
+	}
+
+	public void run() {
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+			VMKernel.lock.acquire();
+			sample();
+			for (VMProcess process : processes)
+				adjustQuota(process);
+			schedule();
+			VMKernel.lock.release();
+		}
+	}
+
+	/**
+	 * Record which resident pages were used since the last sample, and
+	 * recount the working sets of the processes that are not suspended.
+	 */
+	private void sample() {
+		VMKernel.tlbManager.sync();
+		numSamples++;
+		for (int ppn = 0; ppn < numFrames; ppn++) {
+			PageInfo info = VMKernel.globalPageTable[ppn];
+			if (info != null && VMKernel.isUsed(ppn)) {
+				info.process.pageUsed(info.entry.vpn);
+				VMKernel.clearUsed(ppn);
+			}
+		}
+		for (VMProcess process : processes) {
+			if (!process.suspended)
+				process.workingSetSize = process.countWorkingSet(numSamples - window);
+		}
+	}
+
+	/**
+	 * Raise the quota of a process that is faulting often, and lower the
+	 * quota of one that is not toward its working set.
+	 */
+	private void adjustQuota(VMProcess process) {
+		int faults = process.faultsSinceSample;
+		process.faultsSinceSample = 0;
+		int floor = Math.max(minQuota, process.workingSetSize);
+		if (faults > highFaults)
+			process.quota = Math.min(numFrames, process.quota + faults);
+		else if (faults < lowFaults && process.quota > floor)
+			process.quota -= (process.quota - floor + 1) / 2;
+	}
+
+	/**
+	 * Suspend the youngest process using memory if the working sets do not
+	 * fit, or resume the oldest suspended process if its working set does.
+	 */
+	private void schedule() {
+		int total = 0, busy = 0;
+		VMProcess youngest = null;
+		for (VMProcess process : processes) {
+			//A process blocked in the kernel uses no pages and is not counted
+			if (process.suspended || process.countWorkingSet(numSamples - 2) == 0)
+				continue;
+			total += process.workingSetSize;
+			busy++;
+			if (youngest == null || process.getPID() > youngest.getPID())
+				youngest = process;
+		}
+
+		if (busy > 1 && total > numFrames) {
+			suspended.add(youngest);
+			youngest.suspend();
+			numSuspensions++;
+			Lib.debug(dbgVM, "suspended pid " + youngest.getPID() + ", working sets "
+					+ total + " pages");
+		}
+		else if (!suspended.isEmpty()
+				&& (busy == 0 || total + suspended.getFirst().workingSetSize <= numFrames)) {
+			VMProcess process = suspended.removeFirst();
+			process.resume();
+			numResumes++;
+			Lib.debug(dbgVM, "resumed pid " + process.getPID());
+		}
+	}
+
+	/**
+	 * Return a summary of what the manager has done.
+	 *
+	 * @return a string describing the manager's activity.
+	 */
+	public String toString() {
+		return "working set manager took " + numSamples + " samples, suspended "
+				+ numSuspensions + " processes, resumed " + numResumes;
+	}
+
+	private int numFrames, interval, window, highFaults, lowFaults, minQuota;
+
+	/** The live processes, and those suspended, oldest first. */
+	private LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+	private LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+
+	private int numSamples = 0, numSuspensions = 0, numResumes = 0;
+
+	private static final char dbgVM = 'v';
+}